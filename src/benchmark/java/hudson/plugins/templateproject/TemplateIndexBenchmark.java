@@ -0,0 +1,89 @@
+package hudson.plugins.templateproject;
+
+import hudson.plugins.templateproject.TemplateIndex.Reference;
+import hudson.plugins.templateproject.TemplateIndex.StepType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the {@link TemplateIndex} operations behind
+ * {@link ItemListenerImpl#onLoaded()}, the "Used by" page and the item
+ * listener, on a synthetic tree of jobs.
+ *
+ * One job out of {@link #referencingRatio} references one of
+ * {@link #TEMPLATES} templates through a builder, a publisher and sometimes
+ * the SCM; the others do not use any template.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemplateIndexBenchmark {
+
+	private static final int TEMPLATES = 50;
+
+	@Param({ "1000", "10000", "50000" })
+	public int jobs;
+
+	@Param({ "4" })
+	public int referencingRatio;
+
+	private TemplateIndex index;
+
+	private List<Reference> references;
+
+	private int next;
+
+	@Setup
+	public void setUp() {
+		index = new TemplateIndex();
+		for (int i = 0; i < jobs; i += referencingRatio) {
+			index.update(jobName(i), references(i));
+		}
+		references = references(1);
+	}
+
+	private static String jobName(int i) {
+		return "team-" + (i % 100) + "/job-" + i;
+	}
+
+	private static List<Reference> references(int i) {
+		String template = "templates/template-" + (i % TEMPLATES);
+		List<Reference> references = new ArrayList<Reference>();
+		references.add(new Reference(template, StepType.BUILDER));
+		references.add(new Reference(template, StepType.PUBLISHER));
+		if (i % 3 == 0) {
+			references.add(new Reference(template, StepType.SCM));
+		}
+		return references;
+	}
+
+	/** Selection of the jobs to refresh once all the jobs got loaded. */
+	@Benchmark
+	public List<String> onLoadedSelection() {
+		return index.getJobsWithProjectActions();
+	}
+
+	/** "Used by" lookup of a single template. */
+	@Benchmark
+	public Set<String> referrers() {
+		return index.getReferrers("templates/template-" + (next++ % TEMPLATES));
+	}
+
+	/** Reindexing of a job after its configuration got saved. */
+	@Benchmark
+	public void reindexJob() {
+		index.update(jobName((next++ % jobs) / referencingRatio * referencingRatio), references);
+	}
+}
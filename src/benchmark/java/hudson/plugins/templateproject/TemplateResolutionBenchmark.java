@@ -0,0 +1,315 @@
+package hudson.plugins.templateproject;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.BuildTrigger;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.tasks.Shell;
+import hudson.util.NullStream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of the template resolution paths of the plugin, on a Jenkins instance
+ * started by {@link JenkinsRule}.
+ *
+ * {@link #TEMPLATES} templates live in the {@code templates} folder, each with
+ * a builder and a publisher. The jobs are spread over {@link #FOLDERS} folders
+ * and each one uses a template through a {@link ProxyBuilder} and a
+ * {@link ProxyPublisher}, by full name, relative name or parameterized name
+ * (expanded with a global node property).
+ *
+ * The {@code perform} benchmarks delegate to a template of {@link #STEPS}
+ * no-op builders and {@link #STEPS} no-op recorders, to measure what the
+ * proxies add to each step (logging, timing, metrics) against running the
+ * same steps directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemplateResolutionBenchmark {
+
+	private static final int TEMPLATES = 10;
+
+	private static final int FOLDERS = 10;
+
+	private static final int STEPS = 10;
+
+	@Param({ "100", "1000" })
+	public int jobs;
+
+	@Param({ "full", "relative", "parameterized" })
+	public String names;
+
+	private JenkinsRule rule;
+
+	private FreeStyleProject[] projects;
+
+	private ProxyBuilder[] builders;
+
+	private ProxyPublisher[] publishers;
+
+	/** One build per job, whose resolutions are cached already. */
+	private FreeStyleBuild[] builds;
+
+	private final BuildListener listener = new StreamBuildListener(new NullStream());
+
+	private Launcher launcher;
+
+	/** Builders and publishers of the no-op template. */
+	private Builder[] noopBuilders;
+
+	private Publisher[] noopPublishers;
+
+	/** Proxies to the no-op template, and a build that resolved it already. */
+	private ProxyBuilder performBuilder;
+
+	private ProxyPublisher performPublisher;
+
+	private FreeStyleBuild performBuild;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws Throwable {
+		rule = new JenkinsRule();
+		// JenkinsRule wants a test description, the statement itself is not run
+		rule.apply(new Statement() {
+			@Override
+			public void evaluate() {
+			}
+		}, Description.createTestDescription(getClass(), "benchmark"));
+		rule.before();
+
+		rule.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(
+				new EnvironmentVariablesNodeProperty.Entry("TEMPLATE_FOLDER", "templates")));
+		MockFolder templates = rule.createFolder("templates");
+		for (int k = 0; k < TEMPLATES; k++) {
+			FreeStyleProject template = templates.createProject(FreeStyleProject.class, "template-" + k);
+			template.getBuildersList().add(new Shell("true"));
+			template.getPublishersList().add(new BuildTrigger("downstream", Result.SUCCESS));
+		}
+		MockFolder[] folders = new MockFolder[FOLDERS];
+		for (int f = 0; f < FOLDERS; f++) {
+			folders[f] = rule.createFolder("team-" + f);
+		}
+
+		projects = new FreeStyleProject[jobs];
+		builders = new ProxyBuilder[jobs];
+		publishers = new ProxyPublisher[jobs];
+		builds = new FreeStyleBuild[jobs];
+		for (int i = 0; i < jobs; i++) {
+			projects[i] = folders[i % FOLDERS].createProject(FreeStyleProject.class, "job-" + i);
+			builders[i] = new ProxyBuilder(templateName(i % TEMPLATES));
+			publishers[i] = new ProxyPublisher(templateName(i % TEMPLATES));
+			projects[i].getBuildersList().add(builders[i]);
+			projects[i].getPublishersList().add(publishers[i]);
+			builds[i] = new FreeStyleBuild(projects[i]);
+			use(builds[i], i);
+		}
+
+		launcher = rule.jenkins.createLauncher(listener);
+		FreeStyleProject noop = templates.createProject(FreeStyleProject.class, "noop");
+		noopBuilders = new Builder[STEPS];
+		noopPublishers = new Publisher[STEPS];
+		for (int k = 0; k < STEPS; k++) {
+			noopBuilders[k] = new NoopBuilder();
+			noopPublishers[k] = new NoopRecorder();
+			noop.getBuildersList().add(noopBuilders[k]);
+			noop.getPublishersList().add(noopPublishers[k]);
+		}
+		FreeStyleProject performProject = folders[0].createProject(FreeStyleProject.class, "perform");
+		performBuilder = new ProxyBuilder(templateName("noop"));
+		performPublisher = new ProxyPublisher(templateName("noop"));
+		performProject.getBuildersList().add(performBuilder);
+		performProject.getPublishersList().add(performPublisher);
+		performBuild = new FreeStyleBuild(performProject);
+		performBuilder.prebuild(performBuild, listener);
+		performPublisher.prebuild(performBuild, listener);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		rule.after();
+	}
+
+	private String templateName(int k) {
+		return templateName("template-" + k);
+	}
+
+	private String templateName(String template) {
+		if ("relative".equals(names)) {
+			return "../templates/" + template;
+		} else if ("parameterized".equals(names)) {
+			return "${TEMPLATE_FOLDER}/" + template;
+		}
+		return "templates/" + template;
+	}
+
+	private boolean use(FreeStyleBuild build, int i) {
+		// what the proxies resolve before delegating anything to the template steps
+		return builders[i].prebuild(build, listener) & publishers[i].prebuild(build, listener);
+	}
+
+	/**
+	 * A new build for each invocation, so nothing is cached for the build yet.
+	 */
+	@State(Scope.Thread)
+	public static class NewBuild {
+		int job;
+
+		FreeStyleBuild build;
+
+		@Setup(Level.Invocation)
+		public void newBuild(TemplateResolutionBenchmark benchmark) throws IOException {
+			job = benchmark.next++ % benchmark.jobs;
+			build = new FreeStyleBuild(benchmark.projects[job]);
+		}
+	}
+
+	/**
+	 * Resolution without a build, as done for the project actions, the
+	 * dependency graph and the queue: cached across builds by name and folder.
+	 * Parameterized names do not resolve without a build, so this measures a
+	 * cached miss for them.
+	 */
+	@Benchmark
+	public AbstractProject<?, ?> resolveWithoutBuild() {
+		int i = next++ % jobs;
+		return TemplateUtils.getProject(builders[i].getProjectName(), null, projects[i]);
+	}
+
+	/**
+	 * First use of the templates by a build: expansion, resolution, snapshot and builder plan.
+	 */
+	@Benchmark
+	public boolean firstUseInBuild(NewBuild newBuild) {
+		return use(newBuild.build, newBuild.job);
+	}
+
+	/**
+	 * Following uses of the templates by the same build, as for each step and phase.
+	 */
+	@Benchmark
+	public boolean nextUseInBuild() {
+		int i = next++ % jobs;
+		return use(builds[i], i);
+	}
+
+	/**
+	 * {@link ProxyBuilder#perform} of a build that resolved the template already.
+	 */
+	@Benchmark
+	public boolean performBuilders() throws Exception {
+		return performBuilder.perform(performBuild, launcher, listener);
+	}
+
+	/**
+	 * {@link ProxyPublisher#perform} of a build that resolved the template already.
+	 */
+	@Benchmark
+	public boolean performPublishers() throws Exception {
+		return performPublisher.perform(performBuild, launcher, listener);
+	}
+
+	/**
+	 * The steps of the no-op template run directly, the baseline of the {@code perform} benchmarks.
+	 */
+	@Benchmark
+	public boolean performDirectly() throws Exception {
+		boolean performed = true;
+		for (Builder builder : noopBuilders) {
+			performed &= builder.perform(performBuild, launcher, listener);
+		}
+		for (Publisher publisher : noopPublishers) {
+			performed &= publisher.perform(performBuild, launcher, listener);
+		}
+		return performed;
+	}
+
+	/**
+	 * What {@link ItemListenerImpl#onLoaded()} does once all the items got
+	 * loaded, without spreading the refresh over threads.
+	 */
+	@Benchmark
+	public void onLoaded() throws IOException {
+		for (AbstractProject<?, ?> project : ItemListenerImpl.reindex()) {
+			ItemListenerImpl.refreshTransientActions(project);
+		}
+	}
+
+	/**
+	 * Does nothing. Has a descriptor of its own, as the benchmark does not register extensions.
+	 */
+	public static class NoopBuilder extends Builder {
+		private static final Descriptor<Builder> DESCRIPTOR = new Descriptor<Builder>(NoopBuilder.class) {
+			@Override
+			public String getDisplayName() {
+				return "No-op builder";
+			}
+		};
+
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+			return true;
+		}
+
+		@Override
+		public Descriptor<Builder> getDescriptor() {
+			return DESCRIPTOR;
+		}
+	}
+
+	/**
+	 * Does nothing, see {@link NoopBuilder}.
+	 */
+	public static class NoopRecorder extends Recorder {
+		private static final Descriptor<Publisher> DESCRIPTOR = new Descriptor<Publisher>(NoopRecorder.class) {
+			@Override
+			public String getDisplayName() {
+				return "No-op recorder";
+			}
+		};
+
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+			return true;
+		}
+
+		public BuildStepMonitor getRequiredMonitorService() {
+			return BuildStepMonitor.NONE;
+		}
+
+		@Override
+		public Descriptor<Publisher> getDescriptor() {
+			return DESCRIPTOR;
+		}
+	}
+}
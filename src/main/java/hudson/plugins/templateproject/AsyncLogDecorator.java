@@ -0,0 +1,163 @@
+package hudson.plugins.templateproject;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a chain of log decorators on a thread of its own, so slow decorators do
+ * not hold up the build writing to its log.
+ *
+ * Output is handed over in chunks through a bounded queue. When the queue is
+ * full, the build waits for the decorators to catch up. Closing the stream
+ * waits for everything queued to go through the decorators, then closes them.
+ *
+ * Interrupts do not cut these waits short, they are only passed on once the
+ * output got queued: an aborted build still gets the tail of its log, and the
+ * decorators get closed.
+ */
+final class AsyncLogDecorator extends OutputStream {
+
+	/**
+	 * Number of chunks of output, of up to 8 KB each, waiting for the decorators.
+	 */
+	static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(ProxyBuildEnvironment.class.getName() + ".asyncLogQueueSize", 1024));
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+
+	private final OutputStream decorated;
+
+	private final Thread thread;
+
+	private volatile IOException failure;
+
+	private boolean closed;
+
+	private AsyncLogDecorator(OutputStream decorated, String name) {
+		this.decorated = decorated;
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param decorated the output of the decorator chain.
+	 * @param name name of the thread running the decorators.
+	 */
+	static OutputStream decorate(OutputStream decorated, String name) {
+		return new BufferedOutputStream(new AsyncLogDecorator(decorated, name), CHUNK_SIZE);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		checkFailure();
+		if (len == 0) {
+			return;
+		}
+		byte[] chunk = new byte[len];
+		System.arraycopy(b, off, chunk, 0, len);
+		put(chunk);
+	}
+
+	/**
+	 * Does not wait for the decorators, which flush on their own whenever they run out of output.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkFailure();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		put(END);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		checkFailure();
+	}
+
+	private void put(byte[] chunk) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					if (queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+				// the decorators stopped taking output
+				checkFailure();
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private void drain() {
+		try {
+			for (byte[] chunk = queue.take(); chunk != END; chunk = queue.take()) {
+				decorated.write(chunk);
+				if (queue.isEmpty()) {
+					decorated.flush();
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException("Log decorator failed", e);
+		} catch (InterruptedException e) {
+			failure = new InterruptedIOException("Log decorator interrupted");
+		} finally {
+			try {
+				decorated.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.templateproject;
+
+import hudson.matrix.MatrixRun;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, for the lifetime of a build, what each template name expanded to
+ * which template project it resolved to and the snapshot of its steps.
+ *
+ * All the proxy steps of a build share it, so a template is looked up once per
+ * build and a template renamed while the build is running keeps resolving to
+ * the same project. Entries are only kept as long as the build is in memory.
+ *
+ * The configuration runs of a matrix build share the projects, snapshots and
+ * plans resolved by any of them through the cache of the matrix build, so a
+ * template gets resolved once for the whole matrix. Names are still expanded
+ * per run, as they may use the axes.
+ */
+final class BuildResolutionCache {
+
+	private static final Map<AbstractBuild<?, ?>, BuildResolutionCache> CACHES =
+			Collections.synchronizedMap(new WeakHashMap<AbstractBuild<?, ?>, BuildResolutionCache>());
+
+	/** Cache of the matrix build a configuration run belongs to, or null. */
+	private final BuildResolutionCache parent;
+
+	private volatile Map<String, String> variables;
+
+	private final ConcurrentMap<String, String> expandedNames = new ConcurrentHashMap<String, String>();
+
+	/** Shared with the parent, if any: it is keyed by expanded name and folder, see {@link TemplateResolver#key}. */
+	private final ConcurrentMap<String, AbstractProject<?, ?>> projects;
+
+	private final ConcurrentMap<String, TemplateSnapshot> snapshots = new ConcurrentHashMap<String, TemplateSnapshot>();
+
+	/** Proxy step to the template steps it selected. */
+	private final Map<Object, List<?>> steps = Collections.synchronizedMap(new IdentityHashMap<Object, List<?>>());
+
+	private final ConcurrentMap<String, BuilderPlan> plans = new ConcurrentHashMap<String, BuilderPlan>();
+
+	private BuildResolutionCache(BuildResolutionCache parent) {
+		this.parent = parent;
+		this.projects = parent != null ? parent.projects : new ConcurrentHashMap<String, AbstractProject<?, ?>>();
+	}
+
+	static BuildResolutionCache of(AbstractBuild<?, ?> build) {
+		synchronized (CACHES) {
+			BuildResolutionCache cache = CACHES.get(build);
+			if (cache == null) {
+				AbstractBuild<?, ?> parentBuild = getParentBuild(build);
+				cache = new BuildResolutionCache(parentBuild == null ? null : of(parentBuild));
+				CACHES.put(build, cache);
+			}
+			return cache;
+		}
+	}
+
+	private static AbstractBuild<?, ?> getParentBuild(AbstractBuild<?, ?> build) {
+		if (Hudson.getInstance().getPlugin("matrix-project") == null) {
+			return null;
+		}
+		return Matrix.getParentBuild(build);
+	}
+
+	/**
+	 * Only touches the optional matrix-project classes once the plugin is known to be installed.
+	 */
+	private static final class Matrix {
+		static AbstractBuild<?, ?> getParentBuild(AbstractBuild<?, ?> build) {
+			return build instanceof MatrixRun ? ((MatrixRun) build).getParentBuild() : null;
+		}
+	}
+
+	/**
+	 * @return the variables template names get expanded with, if collected already.
+	 */
+	Map<String, String> getVariables() {
+		return variables;
+	}
+
+	synchronized Map<String, String> putVariables(Map<String, String> variables) {
+		if (this.variables == null) {
+			this.variables = Collections.unmodifiableMap(variables);
+		}
+		return this.variables;
+	}
+
+	String getExpandedName(String projectName) {
+		return expandedNames.get(projectName);
+	}
+
+	String putExpandedName(String projectName, String expandedName) {
+		String previous = expandedNames.putIfAbsent(projectName, expandedName);
+		return previous != null ? previous : expandedName;
+	}
+
+	AbstractProject<?, ?> getProject(String key) {
+		return projects.get(key);
+	}
+
+	AbstractProject<?, ?> putProject(String key, AbstractProject<?, ?> project) {
+		AbstractProject<?, ?> previous = projects.putIfAbsent(key, project);
+		return previous != null ? previous : project;
+	}
+
+	TemplateSnapshot getSnapshot(String templateName) {
+		return snapshots.get(templateName);
+	}
+
+	TemplateSnapshot putSnapshot(String templateName, TemplateSnapshot snapshot) {
+		if (parent != null) {
+			snapshot = parent.putSnapshot(templateName, snapshot);
+		}
+		TemplateSnapshot previous = snapshots.putIfAbsent(templateName, snapshot);
+		return previous != null ? previous : snapshot;
+	}
+
+	/**
+	 * @return the template steps the given proxy step selected for the build.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> List<T> getSteps(Object proxy) {
+		return (List<T>) steps.get(proxy);
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> List<T> putSteps(Object proxy, List<T> selected) {
+		synchronized (steps) {
+			List<T> previous = (List<T>) steps.get(proxy);
+			if (previous != null) {
+				return previous;
+			}
+			steps.put(proxy, selected);
+			return selected;
+		}
+	}
+
+	BuilderPlan getPlan(String templateName) {
+		BuilderPlan plan = plans.get(templateName);
+		return plan == null && parent != null ? parent.getPlan(templateName) : plan;
+	}
+
+	/**
+	 * Plans going through parameterized names are kept to the run, as they may depend on its axes.
+	 */
+	BuilderPlan putPlan(String templateName, BuilderPlan plan) {
+		if (parent != null && !plan.isParameterized()) {
+			plan = parent.putPlan(templateName, plan);
+		}
+		BuilderPlan previous = plans.putIfAbsent(templateName, plan);
+		return previous != null ? previous : plan;
+	}
+}
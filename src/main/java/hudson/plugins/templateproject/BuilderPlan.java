@@ -0,0 +1,210 @@
+package hudson.plugins.templateproject;
+
+import hudson.AbortException;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.tasks.Builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The concrete builders run on behalf of a template, with the builders of
+ * nested {@link ProxyBuilder}s flattened in place.
+ *
+ * Plans are compiled once per template and reused by the following builds,
+ * until one of the templates of the chain is saved, renamed or deleted. A plan
+ * compiled from the snapshot a build took before a template got saved is only
+ * kept for that build.
+ * Chains going through a parameterized name or a missing template depend on
+ * the build and are only kept for the build they were compiled for. Nested
+ * template names are resolved from the template referencing them.
+ *
+ * The {@link StepFilter} of each nested {@link ProxyBuilder} selects among the
+ * flattened builders of its template, and the filter of the proxy the plan is
+ * for among the builders of the whole chain, so plans are kept per filter.
+ */
+final class BuilderPlan {
+
+	private static final ConcurrentMap<String, BuilderPlan> PLANS = new ConcurrentHashMap<String, BuilderPlan>();
+
+	/** Bumped on each invalidation, so plans compiled concurrently with one are not cached. */
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private final List<Builder> builders;
+
+	/** Full names of the templates the plan was compiled from. */
+	private final Set<String> templates;
+
+	/** Full names of the templates flattened to the revisions of the snapshots they were flattened from. */
+	private final Map<String, Long> revisions;
+
+	private final boolean parameterized;
+
+	private BuilderPlan(List<Builder> builders, Set<String> templates, Map<String, Long> revisions, boolean parameterized) {
+		this.builders = Collections.unmodifiableList(builders);
+		this.templates = Collections.unmodifiableSet(templates);
+		this.revisions = Collections.unmodifiableMap(revisions);
+		this.parameterized = parameterized;
+	}
+
+	List<Builder> getBuilders() {
+		return builders;
+	}
+
+	Set<String> getTemplates() {
+		return templates;
+	}
+
+	/**
+	 * Whether the plan depends on the build: a template name of the chain is parameterized or missing.
+	 */
+	boolean isParameterized() {
+		return parameterized;
+	}
+
+	/**
+	 * Whether the plan was compiled from the current revision of each of its templates.
+	 */
+	boolean isCurrent() {
+		for (Map.Entry<String, Long> entry : revisions.entrySet()) {
+			if (TemplateRevisions.get(entry.getKey()) != entry.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the plan was compiled from the snapshots the build took, for the templates it took one of.
+	 */
+	private boolean isConsistentWith(BuildResolutionCache cache) {
+		for (Map.Entry<String, Long> entry : revisions.entrySet()) {
+			TemplateSnapshot snapshot = cache.getSnapshot(entry.getKey());
+			if (snapshot != null && snapshot.getRevision() != entry.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the plan of the given template for a build, compiling it if needed.
+	 *
+	 * @param filter selects the builders of the template chain to run.
+	 * @throws AbortException if the template chain loops back on itself.
+	 */
+	static BuilderPlan of(String projectName, AbstractBuild<?, ?> build, StepFilter filter) throws AbortException {
+		return of(projectName, build, build == null ? null : build.getProject().getRootProject(), filter);
+	}
+
+	/**
+	 * @param context the job the name is resolved from.
+	 */
+	static BuilderPlan of(String projectName, AbstractBuild<?, ?> build, Item context, StepFilter filter) throws AbortException {
+		AbstractProject<?, ?> template = TemplateUtils.getProject(projectName, build, context);
+		if (template == null) {
+			return new BuilderPlan(Collections.<Builder>emptyList(), Collections.<String>emptySet(), Collections.<String, Long>emptyMap(), false);
+		}
+
+		String key = filter.isAll() ? template.getFullName() : template.getFullName() + '\u0000' + filter.getKey();
+		BuildResolutionCache cache = build == null ? null : BuildResolutionCache.of(build);
+		BuilderPlan plan = cache == null ? null : cache.getPlan(key);
+		if (plan == null) {
+			plan = PLANS.get(key);
+			if (plan != null && cache != null && !plan.isConsistentWith(cache)) {
+				// the build took its snapshots before a template got saved
+				plan = null;
+			}
+			if (plan == null) {
+				long generation = GENERATION.get();
+				plan = compile(template, build, filter);
+				if (!plan.parameterized && generation == GENERATION.get() && plan.isCurrent()) {
+					PLANS.put(key, plan);
+					if (!plan.isCurrent()) {
+						// saved meanwhile, possibly after the invalidation ran
+						PLANS.remove(key, plan);
+					}
+				}
+			}
+			if (cache != null) {
+				plan = cache.putPlan(key, plan);
+			}
+		}
+		return plan;
+	}
+
+	static BuilderPlan compile(AbstractProject<?, ?> template, AbstractBuild<?, ?> build, StepFilter filter) throws AbortException {
+		List<Builder> builders = new ArrayList<Builder>();
+		Set<String> templates = new HashSet<String>();
+		Map<String, Long> revisions = new HashMap<String, Long>();
+		boolean[] parameterized = new boolean[1];
+		flatten(template, build, new LinkedHashSet<String>(), builders, templates, revisions, parameterized);
+		return new BuilderPlan(filter.apply(builders), templates, revisions, parameterized[0]);
+	}
+
+	private static void flatten(AbstractProject<?, ?> template, AbstractBuild<?, ?> build, LinkedHashSet<String> path,
+			List<Builder> builders, Set<String> templates, Map<String, Long> revisions, boolean[] parameterized)
+			throws AbortException {
+		if (!path.add(template.getFullName())) {
+			throw new AbortException("Template projects reference each other: "
+					+ StringUtils.join(path, " -> ") + " -> " + template.getFullName());
+		}
+		templates.add(template.getFullName());
+		TemplateSnapshot snapshot = TemplateSnapshot.of(template, build);
+		revisions.put(template.getFullName(), snapshot.getRevision());
+		for (Builder builder : snapshot.getBuilders()) {
+			if (!(builder instanceof ProxyBuilder)) {
+				builders.add(builder);
+				continue;
+			}
+			String name = ((ProxyBuilder) builder).getProjectName();
+			if (name != null && name.indexOf('$') >= 0) {
+				parameterized[0] = true;
+			}
+			AbstractProject<?, ?> nested = TemplateUtils.getProject(name, build, template);
+			if (nested == null) {
+				// the template may get created in any of the folders searched, recompile the plan next time
+				if (name != null) {
+					templates.add(build == null ? name : TemplateUtils.getExpandedProjectName(name, build));
+					parameterized[0] = true;
+				}
+				continue;
+			}
+			List<Builder> nestedBuilders = new ArrayList<Builder>();
+			flatten(nested, build, path, nestedBuilders, templates, revisions, parameterized);
+			builders.addAll(((ProxyBuilder) builder).getFilter().apply(nestedBuilders));
+		}
+		path.remove(template.getFullName());
+	}
+
+	static void invalidateAll() {
+		GENERATION.incrementAndGet();
+		PLANS.clear();
+	}
+
+	/**
+	 * Drops the cached plans built from the given template.
+	 */
+	static void invalidate(String templateName) {
+		GENERATION.incrementAndGet();
+		for (Iterator<BuilderPlan> it = PLANS.values().iterator(); it.hasNext();) {
+			if (it.next().templates.contains(templateName)) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package hudson.plugins.templateproject;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Items;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.scm.SCM;
+import hudson.util.DirScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-node copies of template SCM checkouts, used to seed the new workspaces
+ * of the jobs using the template through {@link ProxySCM}.
+ *
+ * A fresh workspace is first filled from the node's copy, so the template SCM
+ * only has to update it instead of checking everything out from the remote.
+ * The copy is taken right after a successful checkout into an empty or freshly
+ * seeded workspace, before any build step touched it. Checkouts into reused
+ * workspaces are never copied, as they hold what earlier builds left behind.
+ *
+ * A copy is replaced by the next fresh checkout once the SCM configuration of
+ * the template changed, or once it is older than its maximum age, so seeds do
+ * not drift ever further from the remote. Copies are evicted least recently
+ * used first once the cache of a node goes over its size or entry limit.
+ */
+final class CheckoutCache {
+
+	private static final String ROOT = "template-project-cache";
+
+	private static final String LAST_USED = ".template-project-last-used";
+
+	/** Holds the digest of the SCM configuration the copy was checked out with, and when. */
+	private static final String STORED = ".template-project-stored";
+
+	/** Maximum size of the cache of a node, in megabytes. */
+	private static final long MAX_SIZE = Long.getLong(ProxySCM.class.getName() + ".checkoutCacheMaxSize", 4096) * 1024 * 1024;
+
+	/** Maximum number of templates cached on a node. */
+	private static final int MAX_ENTRIES = Integer.getInteger(ProxySCM.class.getName() + ".checkoutCacheMaxEntries", 20);
+
+	/** Age after which a copy gets replaced by the next fresh checkout, in milliseconds. */
+	private static final long MAX_AGE = TimeUnit.HOURS.toMillis(
+			Long.getLong(ProxySCM.class.getName() + ".checkoutCacheMaxAgeHours", 24));
+
+	private final FilePath root;
+
+	private final FilePath copy;
+
+	/** Digest of the SCM configuration of the template. */
+	private final String scmDigest;
+
+	private CheckoutCache(FilePath root, String template, String scmDigest) {
+		this.root = root;
+		this.copy = root.child(Util.getDigestOf(template));
+		this.scmDigest = scmDigest;
+	}
+
+	/**
+	 * @return the cache of the node the build runs on, or null if it has none.
+	 */
+	static CheckoutCache of(AbstractBuild<?, ?> build, String template, SCM scm) {
+		Node node = build.getBuiltOn();
+		FilePath nodeRoot = node == null ? null : node.getRootPath();
+		return nodeRoot == null ? null : new CheckoutCache(nodeRoot.child(ROOT), template, Util.getDigestOf(Items.XSTREAM2.toXML(scm)));
+	}
+
+	/**
+	 * Fills an empty workspace from the cached checkout, if there is a current one.
+	 *
+	 * @return whether the workspace was empty, so the checkout into it may be cached.
+	 */
+	boolean seed(FilePath workspace, TaskListener listener) throws InterruptedException {
+		try {
+			if (workspace.exists() && !workspace.list().isEmpty()) {
+				return false;
+			}
+			if (!isCurrent()) {
+				return true;
+			}
+			listener.getLogger().println("[TemplateProject] Seeding the workspace from the cached checkout in " + copy.getRemote());
+			workspace.mkdirs();
+			copy.copyRecursiveTo(new DirScanner.Full(), workspace, "template checkout");
+			workspace.child(LAST_USED).delete();
+			workspace.child(STORED).delete();
+			copy.child(LAST_USED).touch(System.currentTimeMillis());
+			return true;
+		} catch (IOException e) {
+			// the checkout from scratch still works
+			e.printStackTrace(listener.error("[TemplateProject] Failed to seed the workspace from the cached checkout"));
+			try {
+				workspace.deleteContents();
+				return true;
+			} catch (IOException e2) {
+				e2.printStackTrace(listener.error("[TemplateProject] Failed to clean up the workspace"));
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return whether there is a copy checked out with the current SCM configuration, and not too long ago.
+	 */
+	private boolean isCurrent() throws IOException, InterruptedException {
+		FilePath stored = copy.child(STORED);
+		return stored.exists() && stored.readToString().equals(scmDigest)
+				&& System.currentTimeMillis() - stored.lastModified() < MAX_AGE;
+	}
+
+	/**
+	 * Caches the checkout of a workspace that was empty before it, unless there is a current copy already.
+	 */
+	void store(FilePath workspace, TaskListener listener) throws InterruptedException {
+		FilePath tmp = root.child(copy.getName() + ".tmp-" + UUID.randomUUID());
+		try {
+			if (isCurrent()) {
+				copy.child(LAST_USED).touch(System.currentTimeMillis());
+				return;
+			}
+			listener.getLogger().println("[TemplateProject] Caching the checkout in " + copy.getRemote());
+			tmp.mkdirs();
+			workspace.copyRecursiveTo(new DirScanner.Full(), tmp, "template checkout");
+			tmp.child(LAST_USED).touch(System.currentTimeMillis());
+			tmp.child(STORED).write(scmDigest, "UTF-8");
+			if (copy.exists()) {
+				// outdated; builds seeding from it meanwhile fall back to a checkout from scratch
+				copy.deleteRecursive();
+			}
+			tmp.renameTo(copy);
+			root.act(new Evict(MAX_SIZE, MAX_ENTRIES));
+		} catch (IOException e) {
+			e.printStackTrace(listener.error("[TemplateProject] Failed to cache the checkout"));
+		} finally {
+			try {
+				if (tmp.exists()) {
+					tmp.deleteRecursive();
+				}
+			} catch (IOException e) {
+				e.printStackTrace(listener.error("[TemplateProject] Failed to clean up " + tmp.getRemote()));
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used checkouts until the cache fits its limits.
+	 */
+	private static final class Evict implements FilePath.FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final long maxSize;
+		private final int maxEntries;
+
+		Evict(long maxSize, int maxEntries) {
+			this.maxSize = maxSize;
+			this.maxEntries = maxEntries;
+		}
+
+		public Void invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+			File[] children = root.listFiles();
+			if (children == null) {
+				return null;
+			}
+			List<File> copies = new ArrayList<File>();
+			for (File child : children) {
+				if (child.isDirectory() && child.getName().indexOf('.') < 0) {
+					copies.add(child);
+				}
+			}
+			// most recently used first
+			Collections.sort(copies, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long lastUsedA = new File(a, LAST_USED).lastModified();
+					long lastUsedB = new File(b, LAST_USED).lastModified();
+					return lastUsedA > lastUsedB ? -1 : lastUsedA < lastUsedB ? 1 : 0;
+				}
+			});
+			long size = 0;
+			for (int i = 0; i < copies.size(); i++) {
+				size += sizeOf(copies.get(i));
+				if (i > 0 && (i >= maxEntries || size > maxSize)) {
+					Util.deleteRecursive(copies.get(i));
+				}
+			}
+			return null;
+		}
+
+		private static long sizeOf(File file) throws IOException {
+			if (!file.isDirectory()) {
+				return file.length();
+			}
+			long size = 0;
+			File[] children = file.listFiles();
+			for (File child : children == null ? Collections.<File>emptyList() : Arrays.asList(children)) {
+				size += Util.isSymlink(child) ? 0 : sizeOf(child);
+			}
+			return size;
+		}
+	}
+}
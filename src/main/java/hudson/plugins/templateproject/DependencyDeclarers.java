@@ -0,0 +1,77 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.AbstractProject;
+import hudson.model.DependencyGraph;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Publisher;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.DependencyDeclarer;
+
+/**
+ * The delegates of each template that contribute to the dependency graph.
+ *
+ * They are collected once per graph rebuild, template and {@link StepFilter},
+ * and then reused for every job referencing the template, instead of walking
+ * the template's steps for each of them. Steps the proxy step does not select
+ * do not contribute. A new graph instance means a new rebuild, which starts
+ * from scratch.
+ */
+final class DependencyDeclarers {
+
+	enum Source {
+		PUBLISHERS, BUILD_WRAPPERS
+	}
+
+	private static WeakReference<DependencyGraph> graph = new WeakReference<DependencyGraph>(null);
+
+	private static final Map<String, List<DependencyDeclarer>> DECLARERS = new HashMap<String, List<DependencyDeclarer>>();
+
+	private DependencyDeclarers() {
+	}
+
+	static void buildDependencyGraph(AbstractProject<?, ?> template, Source source, StepFilter filter, AbstractProject project,
+			DependencyGraph graph) {
+		if (template == null) {
+			return;
+		}
+		for (DependencyDeclarer declarer : of(graph, template, source, filter)) {
+			declarer.buildDependencyGraph(project, graph);
+		}
+	}
+
+	private static synchronized List<DependencyDeclarer> of(DependencyGraph current, AbstractProject<?, ?> template, Source source,
+			StepFilter filter) {
+		if (graph.get() != current) {
+			graph = new WeakReference<DependencyGraph>(current);
+			DECLARERS.clear();
+		}
+		String key = source + ":" + template.getFullName() + ":" + filter.getKey();
+		List<DependencyDeclarer> declarers = DECLARERS.get(key);
+		if (declarers == null) {
+			declarers = new ArrayList<DependencyDeclarer>();
+			if (source == Source.PUBLISHERS) {
+				for (Publisher publisher : filter.apply(template.getPublishersList().toList())) {
+					if (publisher instanceof DependencyDeclarer) {
+						declarers.add((DependencyDeclarer) publisher);
+					}
+				}
+			} else {
+				for (BuildWrapper wrapper : filter.apply(TemplateUtils.getBuildWrappers(template))) {
+					if (wrapper instanceof DependencyDeclarer) {
+						declarers.add((DependencyDeclarer) wrapper);
+					}
+				}
+			}
+			declarers = declarers.isEmpty() ? Collections.<DependencyDeclarer>emptyList() : declarers;
+			DECLARERS.put(key, declarers);
+		}
+		return declarers;
+	}
+}
@@ -0,0 +1,116 @@
+package hudson.plugins.templateproject;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Executor;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.NodeProperty;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the variables template names are expanded with.
+ *
+ * {@link AbstractBuild#getEnvironment(TaskListener)} cannot be used, since it
+ * asks the SCM for its variables, which for {@link ProxySCM} means resolving
+ * the template again. Instead, from lowest to highest precedence:
+ * <ul>
+ * <li>the variables of the global node properties, then of the node properties
+ * of the node the build runs on, and its NODE_NAME and NODE_LABELS, set as
+ * core sets them for the build,</li>
+ * <li>the job level {@link EnvironmentContributor}s, e.g. folder properties,</li>
+ * <li>the build variables (parameters, matrix axes).</li>
+ * </ul>
+ * Contributors calling back into the template resolution while the variables
+ * are collected get the build variables only.
+ *
+ * Log decorators run before the build is assigned its node, when
+ * {@link AbstractBuild#getBuiltOn()} still returns the master. The node is then
+ * taken from the executor running the build, see {@link #getNode}.
+ */
+final class ExpansionVariables {
+	private static final Logger LOGGER = Logger.getLogger(ExpansionVariables.class.getName());
+
+	private static final ThreadLocal<Boolean> COLLECTING = new ThreadLocal<Boolean>();
+
+	private ExpansionVariables() {
+	}
+
+	/**
+	 * @return whether the calling thread is collecting the variables already.
+	 */
+	static boolean isCollecting() {
+		return COLLECTING.get() != null;
+	}
+
+	/**
+	 * @return the node the build runs on, or null if not known yet.
+	 */
+	static Node getNode(AbstractBuild<?, ?> build) {
+		if (build.getBuiltOnStr() != null) {
+			return build.getBuiltOn();
+		}
+		Executor executor = Executor.currentExecutor();
+		if (executor != null && executor.getCurrentExecutable() == build) {
+			return executor.getOwner().getNode();
+		}
+		return null;
+	}
+
+	/**
+	 * @param node the node the build runs on, see {@link #getNode}, or null to leave out its variables.
+	 */
+	static Map<String, String> collect(AbstractBuild<?, ?> build, Node node) {
+		EnvVars env = new EnvVars();
+		COLLECTING.set(Boolean.TRUE);
+		try {
+			addNodeProperties(env, Hudson.getInstance().getGlobalNodeProperties());
+			if (node != null) {
+				addNodeProperties(env, node.getNodeProperties());
+				// the name of the master is "master", not the empty node name
+				env.put("NODE_NAME", node.getSelfLabel().getName());
+				env.put("NODE_LABELS", Util.join(node.getAssignedLabels(), " "));
+			}
+			for (EnvironmentContributor contributor : EnvironmentContributor.all()) {
+				contributor.buildEnvironmentFor(build.getParent(), env, TaskListener.NULL);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to collect the environment of " + build.getFullDisplayName(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			COLLECTING.remove();
+		}
+		env.putAll(build.getBuildVariables());
+		return env;
+	}
+
+	/**
+	 * @return the variables of the global node properties, which do not depend on the build.
+	 */
+	static EnvVars global() {
+		EnvVars env = new EnvVars();
+		try {
+			addNodeProperties(env, Hudson.getInstance().getGlobalNodeProperties());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to collect the global node properties' environment", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return env;
+	}
+
+	private static void addNodeProperties(EnvVars env, Iterable<? extends NodeProperty<?>> properties)
+			throws IOException, InterruptedException {
+		for (NodeProperty<?> property : properties) {
+			property.buildEnvVars(env, TaskListener.NULL);
+		}
+	}
+}
@@ -1,26 +1,40 @@
 package hudson.plugins.templateproject;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 
-import hudson.matrix.MatrixProject;
 import hudson.model.Hudson;
-import hudson.model.Project;
+import hudson.model.Item;
 import hudson.Extension;
 import hudson.model.AbstractProject;
 import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This ItemListener implementation will force job using
  * template for publisher to regenerate the transient actions list.
  *
- * To do so we use the {@link UpdateTransientProperty} property which does not do
- * anything. This is a bit a hack that relies on the behavior, but
- * there does not seem to be any better way to force updating projects transients actions.
+ * To do so we call the protected {@code AbstractProject.updateTransientActions()}
+ * reflectively. This is a bit a hack, but there does not seem to be any better
+ * way to force updating projects transients actions. It used to go through the
+ * {@link UpdateTransientProperty} property, which modified the configuration of
+ * the job and could race with a user saving it.
  *
  * @author william.bernardet@gmail.com
  *
@@ -29,48 +43,239 @@ import java.util.logging.Logger;
 public class ItemListenerImpl extends ItemListener {
 	private static final Logger LOGGER = Logger.getLogger(ItemListenerImpl.class.getName());
 
+	/**
+	 * Number of threads used to refresh the transient actions after loading.
+	 */
+	private static final int REFRESH_THREADS = Math.max(1, Integer.getInteger(ItemListenerImpl.class.getName() + ".refreshThreads",
+			Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+	private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(
+			new NamingThreadFactory(new DaemonThreadFactory(), "TemplateProject referrers refresh"));
+
+	/** {@code AbstractProject.updateTransientActions()}, or null if it cannot be called. */
+	static final Method UPDATE_TRANSIENT_ACTIONS = getUpdateTransientActions();
+
 	/**
 	 * Let's force the projects using either the ProxyPublisher or the ProxyBuilder
 	 * to update their transient actions.
+	 *
+	 * The projects are taken from the {@link TemplateIndex}, which got filled
+	 * while Jenkins was loading them, instead of walking all the items again.
+	 * The refresh itself runs in the background on a bounded pool, so it does
+	 * not hold up the end of the startup.
 	 */
 	@Override
 	public void onLoaded() {
-		for (AbstractProject<?,?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
-			if (project.getPublishersList().get(ProxyPublisher.class) != null ||
-					hasBuilder(project, ProxyBuilder.class)
-					|| hasBuildWrappers(project, ProxyBuildEnvironment.class)) {
+		final List<AbstractProject<?, ?>> projects = reindex();
+		if (projects.isEmpty()) {
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		final AtomicInteger remaining = new AtomicInteger(projects.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(REFRESH_THREADS, projects.size()),
+				new NamingThreadFactory(new DaemonThreadFactory(), "TemplateProject transient actions refresh"));
+		for (final AbstractProject<?, ?> project : projects) {
+			executor.execute(new Runnable() {
+				public void run() {
+					SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+					try {
+						refreshTransientActions(project);
+					} catch (IOException e) {
+						LOGGER.severe(e.getMessage());
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Failed to refresh the transient actions of " + project.getFullName(), e);
+					} finally {
+						SecurityContextHolder.setContext(oldContext);
+						if (remaining.decrementAndGet() == 0) {
+							long duration = System.currentTimeMillis() - start;
+							TemplateMetrics.loaded(projects.size(), duration);
+							LOGGER.info("[TemplateProject] Refreshed transient actions of " + projects.size() + " project(s) in "
+									+ duration + " ms");
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Reindexes the jobs using templates, now that all the templates got loaded.
+	 *
+	 * @return the jobs whose transient actions need a refresh.
+	 */
+	static List<AbstractProject<?, ?>> reindex() {
+		// names got resolved while the jobs were loading, possibly before their templates
+		TemplateResolver.clear();
+		// and what got derived from them refers to the projects loaded before, if any
+		TemplateRevisions.reloaded();
+		for (String name : TemplateIndex.get().getJobs()) {
+			AbstractProject<?, ?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+			if (project != null) {
+				TemplateIndex.get().update(project);
+			}
+		}
+
+		List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+		for (String name : TemplateIndex.get().getJobsWithProjectActions()) {
+			AbstractProject<?, ?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+			if (project != null) {
+				projects.add(project);
+			}
+		}
+		return projects;
+	}
+
+	/**
+	 * Forces a project to recompute its transient actions.
+	 *
+	 * Only the transient actions get replaced, nothing of the configuration of
+	 * the project is touched, so it is safe from any thread and concurrently
+	 * with the project being configured.
+	 */
+	static void refreshTransientActions(AbstractProject<?, ?> project) throws IOException {
+		if (UPDATE_TRANSIENT_ACTIONS == null) {
+			return;
+		}
+		try {
+			UPDATE_TRANSIENT_ACTIONS.invoke(project);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Looked up once: should core change the method, this says so at startup
+	 * rather than each project quietly missing its template actions.
+	 */
+	private static Method getUpdateTransientActions() {
+		try {
+			Method method = AbstractProject.class.getDeclaredMethod("updateTransientActions");
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException e) {
+			LOGGER.log(Level.SEVERE, "[TemplateProject] Cannot refresh the transient actions of projects, the jobs using "
+					+ "templates only show the template project actions once they are saved", e);
+			return null;
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "[TemplateProject] Cannot refresh the transient actions of projects, the jobs using "
+					+ "templates only show the template project actions once they are saved", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Refreshes the transient actions of the given jobs on a background thread, one after the other.
+	 */
+	static void refreshLater(final Collection<String> names) {
+		if (names.isEmpty()) {
+			return;
+		}
+		REFRESHER.execute(new Runnable() {
+			public void run() {
+				SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
 				try {
-					project.addProperty(new UpdateTransientProperty());
-					project.removeProperty(UpdateTransientProperty.class);
-				} catch (IOException e) {
-					LOGGER.severe(e.getMessage());
+					for (String name : names) {
+						AbstractProject<?, ?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+						if (project == null) {
+							continue;
+						}
+						try {
+							refreshTransientActions(project);
+						} catch (IOException e) {
+							LOGGER.log(Level.WARNING, "Failed to refresh the transient actions of " + name, e);
+						} catch (RuntimeException e) {
+							LOGGER.log(Level.WARNING, "Failed to refresh the transient actions of " + name, e);
+						}
+					}
+				} finally {
+					SecurityContextHolder.setContext(oldContext);
 				}
 			}
+		});
+	}
+
+	/**
+	 * Reindexes the jobs whose template names may resolve differently now that
+	 * the item with the given full name got created, moved or deleted, and
+	 * refreshes the ones whose references changed.
+	 */
+	private static void reindexAffected(String fullName) {
+		List<String> changed = new ArrayList<String>();
+		SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+		try {
+			for (String name : TemplateIndex.get().getAffectedBy(fullName)) {
+				AbstractProject<?, ?> project = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+				// jobs moved or deleted along get reindexed, or forgotten, on their own
+				if (project != null && TemplateIndex.get().update(project)) {
+					changed.add(name);
+				}
+			}
+		} finally {
+			SecurityContextHolder.setContext(oldContext);
+		}
+		refreshLater(changed);
+	}
+
+	@Override
+	public void onCreated(Item item) {
+		TemplateResolver.clear();
+		TemplateRevisions.changed(item.getFullName());
+		if (item instanceof AbstractProject) {
+			TemplateIndex.get().update((AbstractProject<?, ?>) item);
 		}
+		reindexAffected(item.getFullName());
 	}
 
-	private List<Builder> getBuilders(AbstractProject<?, ?> project) {
-		if (project instanceof Project) {
-			return ((Project)project).getBuilders();
-		} else if (project instanceof MatrixProject) {
-			return ((MatrixProject)project).getBuilders();
-		} else {
-			return Collections.emptyList();
+	@Override
+	public void onUpdated(Item item) {
+		if (item instanceof AbstractProject) {
+			TemplateIndex.get().update((AbstractProject<?, ?>) item);
 		}
 	}
 
-	 private List<BuildWrapper> getBuildWrappers(AbstractProject<?, ?> project) {
-		if (project instanceof Project) {
-			return ((Project)project).getBuildWrappersList();
-		} else if (project instanceof MatrixProject) {
-			return ((MatrixProject)project).getBuildWrappersList();
-		} else {
-			return Collections.emptyList();
+	@Override
+	public void onDeleted(Item item) {
+		TemplateResolver.clear();
+		TemplateRevisions.changed(item.getFullName());
+		TemplateIndex.get().remove(item.getFullName());
+		reindexAffected(item.getFullName());
+	}
+
+	/**
+	 * Called for renames and moves, once for the item and once for each of its descendants.
+	 *
+	 * Moved jobs get scanned again rather than keeping their references, as
+	 * their relative template names now resolve from another folder.
+	 */
+	@Override
+	public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+		TemplateResolver.clear();
+		TemplateRevisions.changed(oldFullName);
+		TemplateRevisions.changed(newFullName);
+		TemplateIndex.get().remove(oldFullName);
+		if (item instanceof AbstractProject) {
+			TemplateIndex.get().update((AbstractProject<?, ?>) item);
 		}
+		reindexAffected(oldFullName);
+		reindexAffected(newFullName);
 	}
 
+	/**
+	 * @deprecated unused, to be removed.
+	 */
+	@Deprecated
 	public <T> boolean hasBuilder(AbstractProject<?, ?> project, Class<T> type) {
-		for (Builder b : getBuilders(project)) {
+		for (Builder b : TemplateUtils.getBuilders(project)) {
 			if (type.isInstance(b)) {
 				return true;
 			}
@@ -78,8 +283,12 @@ public class ItemListenerImpl extends ItemListener {
 		return false;
 	}
 
-	 public <T> boolean hasBuildWrappers(AbstractProject<?, ?> project, Class<T> type) {
-		for (BuildWrapper b : getBuildWrappers(project)) {
+	/**
+	 * @deprecated unused, to be removed.
+	 */
+	@Deprecated
+	public <T> boolean hasBuildWrappers(AbstractProject<?, ?> project, Class<T> type) {
+		for (BuildWrapper b : TemplateUtils.getBuildWrappers(project)) {
 			if (type.isInstance(b)) {
 				return true;
 			}
@@ -0,0 +1,453 @@
+package hudson.plugins.templateproject;
+
+import hudson.AbortException;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.model.Project;
+import hudson.scm.NullSCM;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.DescribableList;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Rewrites the jobs using a template in bulk.
+ *
+ * {@code inline} replaces the proxy steps referencing the template with
+ * copies of the template steps they stand for. {@code extract} does the
+ * reverse, replacing the steps of a job identical to the ones of the template
+ * with proxy steps. Jobs are rewritten concurrently, each one saved once, with
+ * the permissions of the user running the command, who needs to be able to
+ * configure the jobs that change.
+ */
+@Extension
+public class MigrateTemplateCommand extends CLICommand {
+
+	@Argument(index = 0, metaVar = "MODE", required = true, usage = "inline or extract")
+	public String mode;
+
+	@Argument(index = 1, metaVar = "TEMPLATE", required = true, usage = "Full name of the template project")
+	public String template;
+
+	@Option(name = "--folder", metaVar = "FOLDER", usage = "Only rewrite the jobs under this folder")
+	public String folder;
+
+	@Option(name = "--dry-run", usage = "Only print the changes to the steps of each job")
+	public boolean dryRun;
+
+	@Option(name = "--threads", metaVar = "N", usage = "Number of jobs rewritten concurrently (4 by default)")
+	public int threads = 4;
+
+	@Override
+	public String getShortDescription() {
+		return "Inlines a template project into the jobs using it, or extracts it from jobs duplicating its steps";
+	}
+
+	@Override
+	protected int run() throws Exception {
+		Hudson.getInstance().checkPermission(Hudson.READ);
+		final boolean inline;
+		if ("inline".equalsIgnoreCase(mode)) {
+			inline = true;
+		} else if ("extract".equalsIgnoreCase(mode)) {
+			inline = false;
+		} else {
+			throw new AbortException("Unknown mode '" + mode + "', expected inline or extract");
+		}
+		final AbstractProject<?, ?> templateProject = Hudson.getInstance().getItemByFullName(template, AbstractProject.class);
+		if (templateProject == null) {
+			throw new AbortException("No such template project '" + template + "'");
+		}
+
+		List<AbstractProject<?, ?>> jobs = inline ? getReferrers(templateProject) : getCandidates(templateProject);
+		if (jobs.isEmpty()) {
+			stdout.println("No job to rewrite");
+			return 0;
+		}
+
+		final Authentication auth = Hudson.getAuthentication();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(Math.min(threads, 16), jobs.size())),
+				new NamingThreadFactory(new DaemonThreadFactory(), "TemplateProject migration"));
+		List<Future<Rewrite>> futures = new ArrayList<Future<Rewrite>>(jobs.size());
+		try {
+			for (final AbstractProject<?, ?> job : jobs) {
+				futures.add(executor.submit(new Callable<Rewrite>() {
+					public Rewrite call() throws Exception {
+						SecurityContext oldContext = ACL.impersonate(auth);
+						try {
+							Rewrite rewrite = inline ? inline(job, templateProject) : extract(job, templateProject);
+							if (!dryRun && rewrite.isChanged()) {
+								// only the jobs actually rewritten need to be configurable
+								job.checkPermission(Item.CONFIGURE);
+								rewrite.apply();
+							}
+							return rewrite;
+						} finally {
+							SecurityContextHolder.setContext(oldContext);
+						}
+					}
+				}));
+			}
+
+			int failures = 0;
+			int changed = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				String name = jobs.get(i).getFullName();
+				try {
+					Rewrite rewrite = futures.get(i).get();
+					if (rewrite.isChanged()) {
+						changed++;
+						stdout.println((dryRun ? "Would rewrite " : "Rewrote ") + name);
+						for (String line : rewrite.diff) {
+							stdout.println(line);
+						}
+					}
+				} catch (ExecutionException e) {
+					failures++;
+					stderr.println("Failed to rewrite " + name + ": " + e.getCause());
+				}
+			}
+			stdout.println((dryRun ? "Would rewrite " : "Rewrote ") + changed + " of " + jobs.size() + " job(s)");
+			return failures == 0 ? 0 : 1;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the jobs the index knows to reference the template by name.
+	 */
+	private List<AbstractProject<?, ?>> getReferrers(AbstractProject<?, ?> templateProject) {
+		List<AbstractProject<?, ?>> jobs = new ArrayList<AbstractProject<?, ?>>();
+		for (String name : TemplateIndex.get().query(templateProject.getFullName(), folder).keySet()) {
+			AbstractProject<?, ?> job = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+			if (job != null) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	private List<AbstractProject<?, ?>> getCandidates(AbstractProject<?, ?> templateProject) {
+		String prefix = folder == null ? null : (folder.endsWith("/") ? folder : folder + "/");
+		List<AbstractProject<?, ?>> jobs = new ArrayList<AbstractProject<?, ?>>();
+		for (AbstractProject<?, ?> job : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+			if (job == templateProject || job instanceof MatrixConfiguration) {
+				continue;
+			}
+			if (prefix == null || job.getFullName().startsWith(prefix)) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return whether the template name configured on a step of the job designates the template.
+	 */
+	private static boolean isFor(String name, AbstractProject<?, ?> job, AbstractProject<?, ?> templateProject) {
+		return name != null && templateProject.getFullName().equals(TemplateResolver.resolveName(name, job));
+	}
+
+	private Rewrite inline(AbstractProject<?, ?> job, AbstractProject<?, ?> templateProject) throws AbortException {
+		Rewrite rewrite = new Rewrite(job);
+		TemplateSnapshot snapshot = TemplateSnapshot.of(templateProject);
+
+		List<Builder> builders = new ArrayList<Builder>();
+		for (Builder builder : TemplateUtils.getBuilders(job)) {
+			if (builder instanceof ProxyBuilder && isFor(((ProxyBuilder) builder).getProjectName(), job, templateProject)) {
+				((ProxyBuilder) builder).checkFilter();
+				builders.addAll(copyAll(BuilderPlan.compile(templateProject, null, ((ProxyBuilder) builder).getFilter()).getBuilders()));
+			} else {
+				builders.add(builder);
+			}
+		}
+		rewrite.setBuilders(builders);
+
+		List<BuildWrapper> wrappers = new ArrayList<BuildWrapper>();
+		for (BuildWrapper wrapper : TemplateUtils.getBuildWrappers(job)) {
+			if (wrapper instanceof ProxyBuildEnvironment && isFor(((ProxyBuildEnvironment) wrapper).getProjectName(), job, templateProject)) {
+				((ProxyBuildEnvironment) wrapper).checkFilter();
+				wrappers.addAll(copyAll(((ProxyBuildEnvironment) wrapper).getFilter().apply(snapshot.getBuildWrappers())));
+			} else {
+				wrappers.add(wrapper);
+			}
+		}
+		rewrite.setBuildWrappers(wrappers);
+
+		List<Publisher> publishers = new ArrayList<Publisher>();
+		for (Publisher publisher : job.getPublishersList()) {
+			if (publisher instanceof ProxyPublisher && isFor(((ProxyPublisher) publisher).getProjectName(), job, templateProject)) {
+				publishers.addAll(copyAll(((ProxyPublisher) publisher).getFilter().apply(snapshot.getPublishers())));
+			} else {
+				publishers.add(publisher);
+			}
+		}
+		Set<Descriptor<?>> types = new HashSet<Descriptor<?>>();
+		for (Publisher publisher : publishers) {
+			if (!types.add(publisher.getDescriptor())) {
+				throw new AbortException("the job would get two " + publisher.getDescriptor().getDisplayName() + " publishers");
+			}
+		}
+		rewrite.setPublishers(publishers);
+
+		SCM scm = job.getScm();
+		if (scm instanceof ProxySCM && isFor(((ProxySCM) scm).getProjectName(), job, templateProject)) {
+			rewrite.setScm(copy(snapshot.getScm()));
+		}
+		return rewrite;
+	}
+
+	/**
+	 * Running it again on the same jobs changes nothing: the steps already
+	 * extracted are proxy steps, and the ones left over in a job already having
+	 * the proxy step are kept as they are.
+	 */
+	private Rewrite extract(AbstractProject<?, ?> job, AbstractProject<?, ?> templateProject) throws AbortException {
+		Rewrite rewrite = new Rewrite(job);
+		String template = templateProject.getFullName();
+		rewrite.setBuilders(replaceSequence(TemplateUtils.getBuilders(job), TemplateUtils.getBuilders(templateProject),
+				new ProxyBuilder(template)));
+
+		// jobs hold a single build wrapper and publisher of each type
+		List<BuildWrapper> wrappers = TemplateUtils.getBuildWrappers(job);
+		List<BuildWrapper> extractedWrappers = replaceSequence(wrappers, TemplateUtils.getBuildWrappers(templateProject),
+				new ProxyBuildEnvironment(template));
+		ProxyBuildEnvironment existingWrapper = find(wrappers, ProxyBuildEnvironment.class);
+		if (extractedWrappers != wrappers
+				&& (existingWrapper == null || !isAlreadyExtracted(existingWrapper.getProjectName(), job, templateProject, "build wrappers"))) {
+			rewrite.setBuildWrappers(extractedWrappers);
+		}
+
+		// publishers run in the order of their descriptors, wherever they are in the list
+		List<Publisher> templatePublishers = templateProject.getPublishersList().toList();
+		if (!templatePublishers.isEmpty()) {
+			Set<String> wanted = new HashSet<String>();
+			for (Publisher publisher : templatePublishers) {
+				wanted.add(toXML(publisher));
+			}
+			List<Publisher> publishers = new ArrayList<Publisher>();
+			for (Publisher publisher : job.getPublishersList()) {
+				if (!wanted.remove(toXML(publisher))) {
+					publishers.add(publisher);
+				}
+			}
+			ProxyPublisher existingPublisher = find(job.getPublishersList().toList(), ProxyPublisher.class);
+			if (wanted.isEmpty()
+					&& (existingPublisher == null || !isAlreadyExtracted(existingPublisher.getProjectName(), job, templateProject, "publishers"))) {
+				publishers.add(new ProxyPublisher(template));
+				rewrite.setPublishers(publishers);
+			}
+		}
+
+		SCM scm = templateProject.getScm();
+		if (!(scm instanceof NullSCM) && toXML(scm).equals(toXML(job.getScm()))) {
+			rewrite.setScm(new ProxySCM(template));
+		}
+		return rewrite;
+	}
+
+	/**
+	 * @return whether the existing proxy step of the job is for the template.
+	 * @throws AbortException if it is for another template, as the job cannot get a second one.
+	 */
+	private static boolean isAlreadyExtracted(String name, AbstractProject<?, ?> job, AbstractProject<?, ?> templateProject, String steps)
+			throws AbortException {
+		if (isFor(name, job, templateProject)) {
+			return true;
+		}
+		throw new AbortException("the job already uses the " + steps + " of '" + name + "'");
+	}
+
+	private static <T> T find(List<? super T> steps, Class<T> type) {
+		for (Object step : steps) {
+			if (type.isInstance(step)) {
+				return type.cast(step);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the first occurrence of the template steps in the job steps by a single step.
+	 */
+	private static <T> List<T> replaceSequence(List<T> steps, List<T> templateSteps, T proxy) {
+		if (templateSteps.isEmpty() || templateSteps.size() > steps.size()) {
+			return steps;
+		}
+		List<String> xml = new ArrayList<String>(steps.size());
+		for (T step : steps) {
+			xml.add(toXML(step));
+		}
+		List<String> templateXml = new ArrayList<String>(templateSteps.size());
+		for (T step : templateSteps) {
+			templateXml.add(toXML(step));
+		}
+		for (int i = 0; i + templateXml.size() <= xml.size(); i++) {
+			if (xml.subList(i, i + templateXml.size()).equals(templateXml)) {
+				List<T> replaced = new ArrayList<T>(steps.subList(0, i));
+				replaced.add(proxy);
+				replaced.addAll(steps.subList(i + templateXml.size(), steps.size()));
+				return replaced;
+			}
+		}
+		return steps;
+	}
+
+	private static String toXML(Object o) {
+		return Items.XSTREAM2.toXML(o);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T copy(T o) {
+		return (T) Items.XSTREAM2.fromXML(toXML(o));
+	}
+
+	private static <T> List<T> copyAll(List<T> steps) {
+		List<T> copies = new ArrayList<T>(steps.size());
+		for (T step : steps) {
+			copies.add(copy(step));
+		}
+		return copies;
+	}
+
+	private static String describe(Object step) {
+		String name = step instanceof Describable ? ((Describable<?>) step).getDescriptor().getDisplayName() : step.getClass().getName();
+		if (step instanceof ProxyBuilder) {
+			return name + " (" + ((ProxyBuilder) step).getProjectName() + ")";
+		} else if (step instanceof ProxyPublisher) {
+			return name + " (" + ((ProxyPublisher) step).getProjectName() + ")";
+		} else if (step instanceof ProxyBuildEnvironment) {
+			return name + " (" + ((ProxyBuildEnvironment) step).getProjectName() + ")";
+		} else if (step instanceof ProxySCM) {
+			return name + " (" + ((ProxySCM) step).getProjectName() + ")";
+		}
+		return name;
+	}
+
+	/**
+	 * The new steps of a job, and the diff of its step lists.
+	 */
+	private static final class Rewrite {
+		private final AbstractProject<?, ?> job;
+		private final List<String> diff = new ArrayList<String>();
+		private List<Builder> builders;
+		private List<BuildWrapper> buildWrappers;
+		private List<Publisher> publishers;
+		private SCM scm;
+
+		Rewrite(AbstractProject<?, ?> job) {
+			this.job = job;
+		}
+
+		boolean isChanged() {
+			return builders != null || buildWrappers != null || publishers != null || scm != null;
+		}
+
+		void setBuilders(List<Builder> steps) {
+			if (diff("builders", TemplateUtils.getBuilders(job), steps)) {
+				builders = steps;
+			}
+		}
+
+		void setBuildWrappers(List<BuildWrapper> steps) {
+			if (diff("build wrappers", TemplateUtils.getBuildWrappers(job), steps)) {
+				buildWrappers = steps;
+			}
+		}
+
+		void setPublishers(List<Publisher> steps) {
+			if (diff("publishers", job.getPublishersList().toList(), steps)) {
+				publishers = steps;
+			}
+		}
+
+		void setScm(SCM scm) {
+			diff.add("  scm:");
+			diff.add("  - " + describe(job.getScm()));
+			diff.add("  + " + describe(scm));
+			this.scm = scm;
+		}
+
+		/**
+		 * @return whether the steps differ.
+		 */
+		private boolean diff(String section, List<?> before, List<?> after) {
+			if (before.equals(after)) {
+				return false;
+			}
+			diff.add("  " + section + ":");
+			for (Object step : before) {
+				diff.add("  - " + describe(step));
+			}
+			for (Object step : after) {
+				diff.add("  + " + describe(step));
+			}
+			return true;
+		}
+
+		/**
+		 * Saves the job once, whatever the number of sections rewritten.
+		 */
+		void apply() throws Exception {
+			BulkChange bc = new BulkChange(job);
+			try {
+				if (builders != null) {
+					getBuildersList(job).replaceBy(builders);
+				}
+				if (buildWrappers != null) {
+					getBuildWrappersList(job).replaceBy(buildWrappers);
+				}
+				if (publishers != null) {
+					job.getPublishersList().replaceBy(publishers);
+				}
+				if (scm != null) {
+					job.setScm(scm);
+				}
+				bc.commit();
+			} finally {
+				bc.abort();
+			}
+			// the project actions come from the steps
+			ItemListenerImpl.refreshTransientActions(job);
+			TemplateIndex.get().update(job);
+		}
+	}
+
+	private static DescribableList<Builder, Descriptor<Builder>> getBuildersList(AbstractProject<?, ?> job) {
+		return job instanceof MatrixProject ? ((MatrixProject) job).getBuildersList() : ((Project<?, ?>) job).getBuildersList();
+	}
+
+	private static DescribableList<BuildWrapper, Descriptor<BuildWrapper>> getBuildWrappersList(AbstractProject<?, ?> job) {
+		return job instanceof MatrixProject ? ((MatrixProject) job).getBuildWrappersList() : ((Project<?, ?>) job).getBuildWrappersList();
+	}
+}
@@ -0,0 +1,40 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.Hudson;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import org.jenkinsci.plugins.multiplescms.MultiSCM;
+import org.jenkinsci.plugins.multiplescms.MultiSCMRevisionState;
+
+/**
+ * Support for the optional Multiple SCMs plugin.
+ *
+ * The plugin classes are only touched once it is known to be installed.
+ */
+final class MultiSCMSupport {
+
+	private MultiSCMSupport() {
+	}
+
+	static boolean isMultiSCM(SCM scm) {
+		return Hudson.getInstance().getPlugin("multiple-scms") != null && Linked.isMultiSCM(scm);
+	}
+
+	/**
+	 * Only to be called for an SCM {@link #isMultiSCM(SCM) known} to be a MultiSCM.
+	 */
+	static SCMRevisionState emptyRevisionState() {
+		return Linked.emptyRevisionState();
+	}
+
+	private static final class Linked {
+		static boolean isMultiSCM(SCM scm) {
+			return scm instanceof MultiSCM;
+		}
+
+		static SCMRevisionState emptyRevisionState() {
+			return new MultiSCMRevisionState();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package hudson.plugins.templateproject;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Hudson;
+import hudson.model.StreamBuildListener;
+import hudson.security.ACL;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Runs the independent publishers of a template concurrently for {@link ProxyPublisher}.
+ *
+ * Only the publishers whose type is listed on the {@link ProxyPublisher} as
+ * safe to run concurrently are, and only as long as they declare
+ * {@link BuildStepMonitor#NONE} so they do not need to synchronize with other
+ * builds. Consecutive such publishers form a batch run on a bounded pool
+ * shared by all builds. Each one logs to its own buffer, which is copied to
+ * the build log in the declared order once the batch is done.
+ *
+ * Pool threads are not executor threads: publishers running there see no
+ * current executor or computer, so the environment they get from the build
+ * lacks the variables of the node.
+ */
+final class ParallelPublishers {
+
+	private static final int THREADS = Math.max(1, Integer.getInteger(ProxyPublisher.class.getName() + ".parallelThreads", 4));
+
+	private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "TemplateProject parallel publishers"));
+
+	static {
+		POOL.allowCoreThreadTimeOut(true);
+	}
+
+	/** Set on pool threads, so nested templates run their publishers in place instead of waiting on the pool. */
+	private static final ThreadLocal<Boolean> IN_POOL = new ThreadLocal<Boolean>();
+
+	private ParallelPublishers() {
+	}
+
+	/**
+	 * @param allowed the types of the publishers allowed to run concurrently.
+	 * @return the index following the batch of publishers starting at {@code start}.
+	 */
+	static int endOfBatch(List<Publisher> publishers, int start, StepFilter allowed) {
+		if (IN_POOL.get() != null) {
+			return start + 1;
+		}
+		int end = start;
+		while (end < publishers.size() && isAllowed(publishers.get(end), allowed)) {
+			end++;
+		}
+		return Math.max(end, start + 1);
+	}
+
+	private static boolean isAllowed(Publisher publisher, StepFilter allowed) {
+		return allowed.matches(publisher) && publisher.getRequiredMonitorService() == BuildStepMonitor.NONE;
+	}
+
+	/**
+	 * Runs a batch of publishers concurrently and waits for all of them.
+	 *
+	 * @return false if any of the publishers failed.
+	 */
+	static boolean perform(final ProxyPublisher proxy, List<Publisher> batch, final AbstractProject<?, ?> template,
+			final AbstractBuild<?, ?> build, final Launcher launcher, BuildListener listener)
+			throws InterruptedException, IOException {
+		final Authentication auth = Hudson.getAuthentication();
+		List<ByteArrayOutputStream> buffers = new ArrayList<ByteArrayOutputStream>(batch.size());
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batch.size());
+		for (final Publisher publisher : batch) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final BuildListener bufferedListener = new StreamBuildListener(buffer, build.getCharset());
+			buffers.add(buffer);
+			futures.add(POOL.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					IN_POOL.set(Boolean.TRUE);
+					SecurityContext oldContext = ACL.impersonate(auth);
+					try {
+						return proxy.performPublisher(publisher, template, build, launcher, bufferedListener);
+					} finally {
+						bufferedListener.getLogger().flush();
+						SecurityContextHolder.setContext(oldContext);
+						IN_POOL.remove();
+					}
+				}
+			}));
+		}
+
+		boolean result = true;
+		Throwable failure = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				if (!futures.get(i).get()) {
+					result = false;
+				}
+			} catch (InterruptedException e) {
+				for (Future<Boolean> future : futures) {
+					future.cancel(true);
+				}
+				// keeps the output of the publishers which got to finish
+				for (int j = i; j < futures.size(); j++) {
+					if (futures.get(j).isDone() && !futures.get(j).isCancelled()) {
+						buffers.get(j).writeTo(listener.getLogger());
+					}
+				}
+				throw e;
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+				result = false;
+			}
+			buffers.get(i).writeTo(listener.getLogger());
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof InterruptedException) {
+			throw (InterruptedException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+		return result;
+	}
+}
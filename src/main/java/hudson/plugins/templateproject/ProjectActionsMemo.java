@@ -0,0 +1,37 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Project actions a proxy step collected from its template's delegates, kept
+ * for a given referencing project until the template changes.
+ */
+final class ProjectActionsMemo {
+
+	private final AbstractProject<?, ?> project;
+	private final String template;
+	private final long revision;
+	private final List<Action> actions;
+
+	ProjectActionsMemo(AbstractProject<?, ?> project, String template, long revision, List<Action> actions) {
+		this.project = project;
+		this.template = template;
+		this.revision = revision;
+		this.actions = Collections.unmodifiableList(actions);
+	}
+
+	/**
+	 * @return whether the actions were collected for this project, template and template revision.
+	 */
+	boolean isFor(AbstractProject<?, ?> project, String template, long revision) {
+		return this.project == project && this.revision == revision && this.template.equals(template);
+	}
+
+	List<Action> getActions() {
+		return actions;
+	}
+}
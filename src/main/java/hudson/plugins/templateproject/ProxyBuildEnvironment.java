@@ -1,7 +1,9 @@
 package hudson.plugins.templateproject;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.console.HyperlinkNote;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractBuild;
@@ -10,7 +12,6 @@ import hudson.model.Action;
 import hudson.model.BuildListener;
 import jenkins.model.DependencyDeclarer;
 import hudson.model.DependencyGraph;
-import hudson.model.Hudson;
 import hudson.model.Item;
 import hudson.model.Project;
 import hudson.model.Run;
@@ -26,15 +27,29 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDeclarer {
 
 	private final String projectName;
 
+	private boolean asyncLogging;
+
+	private String includes;
+
+	private String excludes;
+
+	private String range;
+
+	private transient volatile StepFilter filter;
+
+	private transient volatile ProjectActionsMemo actionsMemo;
+
 	@DataBoundConstructor
 	public ProxyBuildEnvironment(String projectName) {
 		this.projectName = projectName;
@@ -44,6 +59,80 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 		return projectName;
 	}
 
+	/**
+	 * Whether the log decorators of the template run on a thread of their own.
+	 */
+	public boolean isAsyncLogging() {
+		return asyncLogging;
+	}
+
+	@DataBoundSetter
+	public void setAsyncLogging(boolean asyncLogging) {
+		this.asyncLogging = asyncLogging;
+	}
+
+	/**
+	 * Types of the template build wrappers to run, all of them if empty.
+	 *
+	 * @see StepFilter
+	 */
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = Util.fixEmptyAndTrim(includes);
+		this.filter = null;
+	}
+
+	/**
+	 * Types of the template build wrappers not to run.
+	 */
+	public String getExcludes() {
+		return excludes;
+	}
+
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = Util.fixEmptyAndTrim(excludes);
+		this.filter = null;
+	}
+
+	/**
+	 * Positions of the template build wrappers to run, all of them if empty.
+	 */
+	public String getRange() {
+		return range;
+	}
+
+	/**
+	 * Kept as configured even if it cannot be parsed: the form reports it, and builds fail on it.
+	 */
+	@DataBoundSetter
+	public void setRange(String range) {
+		this.range = Util.fixEmptyAndTrim(range);
+		this.filter = null;
+	}
+
+	/**
+	 * @throws AbortException if the range cannot be parsed.
+	 */
+	void checkFilter() throws AbortException {
+		if (getFilter() == StepFilter.NONE) {
+			throw new AbortException("[TemplateProject] Invalid range of build wrappers: '" + range + "'");
+		}
+	}
+
+	StepFilter getFilter() {
+		StepFilter f = filter;
+		if (f == null) {
+			f = StepFilter.ofConfigured(includes, excludes, range);
+			filter = f;
+		}
+		return f;
+	}
+
 	public String getExpandedProjectName(AbstractBuild<?, ?> build) {
 		return TemplateUtils.getExpandedProjectName(projectName, build);
 	}
@@ -52,50 +141,141 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 		return TemplateUtils.getProject(projectName, null);
 	}
 
-	public List<BuildWrapper> getProjectBuildWrappers(AbstractBuild<?, ?> build) {
-		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
+	/**
+	 * @param context the job using this step, relative names are resolved from.
+	 */
+	public AbstractProject<?, ?> getProject(Item context) {
+		return TemplateUtils.getProject(projectName, null, context);
+	}
 
-		if (p instanceof Project) {
-			return ((Project) p).getBuildWrappersList();
-		} else if (p instanceof MatrixProject) {
-			return ((MatrixProject) p).getBuildWrappersList();
-		} else {
-			return Collections.emptyList();
+	/**
+	 * @return the build wrappers of the template selected for the build.
+	 */
+	public List<BuildWrapper> getProjectBuildWrappers(AbstractBuild<?, ?> build) {
+		BuildResolutionCache cache = build == null ? null : BuildResolutionCache.of(build);
+		List<BuildWrapper> wrappers = cache == null ? null : cache.<BuildWrapper>getSteps(this);
+		if (wrappers == null) {
+			TemplateSnapshot snapshot = TemplateSnapshot.of(getProjectName(), build);
+			if (snapshot == null) {
+				return Collections.emptyList();
+			}
+			wrappers = getFilter().apply(snapshot.getBuildWrappers());
+			if (cache != null) {
+				wrappers = cache.putSteps(this, wrappers);
+			}
 		}
+		return wrappers;
 	}
 
 	@Override
 	public final void buildDependencyGraph(final AbstractProject project, final DependencyGraph graph) {
-		final Item item = Hudson.getInstance().getItemByFullName(getProjectName());
-		AbstractProject<?, ?> templateProject = (AbstractProject) Hudson.getInstance().getItem(getProjectName());
-		if (item instanceof Project) {
-			// @TODO : see how important it is that this gets expanded projectName
-			for (BuildWrapper wrapper : getProjectBuildWrappers(null)) {
-				if (wrapper instanceof DependencyDeclarer) {
-					((DependencyDeclarer) wrapper).buildDependencyGraph(project, graph);
-				}
-			}
-		}
+		// @TODO : see how important it is that this gets expanded projectName
+		DependencyDeclarers.buildDependencyGraph(getProject(project), DependencyDeclarers.Source.BUILD_WRAPPERS, getFilter(), project, graph);
 	}
 
 	@Override
 	public Environment setUp(@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException,
 					InterruptedException {
-
+		checkFilter();
 		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
 		listener.getLogger().println("[TemplateProject] Getting environment from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
-		for (BuildWrapper builder : getProjectBuildWrappers(build)) {
-			builder.setUp(build, launcher, listener);
+		TemplateEnvironment environment = new TemplateEnvironment(p.getFullName());
+		boolean setUp = false;
+		try {
+			for (BuildWrapper builder : getProjectBuildWrappers(build)) {
+				long start = System.currentTimeMillis();
+				Environment e = builder.setUp(build, launcher, listener);
+				TemplateTimingAction.record(build, p.getFullName(), TemplateTimingAction.Phase.SET_UP, builder, start);
+				if (e == null) {
+					listener.getLogger().println("[TemplateProject] FAILED setting up environment from: '" + p.getFullDisplayName() + "'");
+					return null;
+				}
+				environment.add(builder, e);
+			}
+			setUp = true;
+		} finally {
+			if (!setUp) {
+				// the build will not tear down what it never got
+				tearDownAfterFailure(environment, build, listener);
+			}
 		}
 		listener.getLogger().println("[TemplateProject] Successfully setup environment from: '" + p.getFullDisplayName() + "'");
+		return environment;
+	}
+
+	/**
+	 * Tears down the environments set up before a wrapper failed, without
+	 * hiding the failure of the set up behind one of the tear down.
+	 */
+	private static void tearDownAfterFailure(TemplateEnvironment environment, AbstractBuild<?, ?> build, BuildListener listener) {
+		try {
+			environment.tearDown(build, listener);
+		} catch (InterruptedException e) {
+			listener.getLogger().println("[TemplateProject] Interrupted while tearing down the environment from: '" + environment.template + "'");
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace(listener.error("[TemplateProject] Failed to tear down the environment from: '" + environment.template + "'"));
+		} catch (RuntimeException e) {
+			e.printStackTrace(listener.error("[TemplateProject] Failed to tear down the environment from: '" + environment.template + "'"));
+		}
+	}
+
+	/**
+	 * Holds the environments set up by the wrappers of the template, and tears
+	 * them down in reverse order. A wrapper failing to tear down does not keep
+	 * the others from doing so.
+	 */
+	private final class TemplateEnvironment extends Environment {
+		private final String template;
+		private final List<BuildWrapper> wrappers = new ArrayList<BuildWrapper>();
+		private final List<Environment> environments = new ArrayList<Environment>();
+
+		TemplateEnvironment(String template) {
+			this.template = template;
+		}
 
-		return new Environment() {
-			@Override
-			public boolean tearDown(@SuppressWarnings("rawtypes") AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-				// let build continue
-				return true;
+		void add(BuildWrapper wrapper, Environment environment) {
+			wrappers.add(wrapper);
+			environments.add(environment);
+		}
+
+		@Override
+		public void buildEnvVars(Map<String, String> env) {
+			for (Environment environment : environments) {
+				environment.buildEnvVars(env);
+			}
+		}
+
+		@Override
+		public boolean tearDown(@SuppressWarnings("rawtypes") AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+			boolean result = true;
+			InterruptedException interrupted = null;
+			for (int i = environments.size() - 1; i >= 0; i--) {
+				BuildWrapper wrapper = wrappers.get(i);
+				long start = System.currentTimeMillis();
+				try {
+					if (!environments.get(i).tearDown(build, listener)) {
+						result = false;
+					}
+				} catch (InterruptedException e) {
+					interrupted = e;
+				} catch (IOException e) {
+					e.printStackTrace(listener.error("[TemplateProject] Failed to tear down " + wrapper.getDescriptor().getDisplayName() + " from: '" + template + "'"));
+					result = false;
+				} catch (RuntimeException e) {
+					e.printStackTrace(listener.error("[TemplateProject] Failed to tear down " + wrapper.getDescriptor().getDisplayName() + " from: '" + template + "'"));
+					result = false;
+				}
+				TemplateTimingAction.record(build, template, TemplateTimingAction.Phase.TEAR_DOWN, wrapper, start);
 			}
-		};
+			// only tear down once
+			environments.clear();
+			wrappers.clear();
+			if (interrupted != null) {
+				throw interrupted;
+			}
+			return result;
+		}
 	}
 
 	@Override
@@ -103,7 +283,9 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
 		listener.getLogger().println("[TemplateProject] Starting pre-checkout from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
 		for (BuildWrapper builder : getProjectBuildWrappers(build)) {
+			long start = System.currentTimeMillis();
 			builder.preCheckout(build, launcher, listener);
+			TemplateTimingAction.record(build, p.getFullName(), TemplateTimingAction.Phase.PRE_CHECKOUT, builder, start);
 		}
 		listener.getLogger().println("[TemplateProject] Successfully performed pre-checkout from: '" + p.getFullDisplayName() + "'");
 	}
@@ -118,10 +300,14 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 
 	@Override
 	public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException, Run.RunnerAbortedException {
+		OutputStream decorated = logger;
 		for (BuildWrapper builder : getProjectBuildWrappers(build)) {
-			logger = builder.decorateLogger(build, logger);
+			decorated = builder.decorateLogger(build, decorated);
 		}
-		return logger;
+		if (!asyncLogging || decorated == logger) {
+			return decorated;
+		}
+		return AsyncLogDecorator.decorate(decorated, "TemplateProject log decorators for " + build.getFullDisplayName());
 	}
 
 	@Extension
@@ -137,6 +323,10 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 			return true;
 		}
 
+		public FormValidation doCheckRange(@QueryParameter String value) {
+			return StepFilter.checkRange(value);
+		}
+
 		/**
 		 * Form validation method.
 		 */
@@ -145,8 +335,8 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 			if (!anc.hasPermission(Item.CONFIGURE)) {
 				return FormValidation.ok();
 			}
-			Item item = Hudson.getInstance().getItemByFullName(
-							value, Item.class);
+			// relative to the job being configured
+			Item item = TemplateResolver.resolve(value, anc instanceof Item ? (Item) anc : null, Item.class);
 			if (item == null) {
 				return FormValidation.error(Messages.BuildTrigger_NoSuchProject(value,
 								AbstractProject.findNearest(value)
@@ -159,14 +349,27 @@ public class ProxyBuildEnvironment extends BuildWrapper implements DependencyDec
 		}
 	}
 
+	/**
+	 * The actions are kept until the template changes.
+	 */
 	@Override
 	public Collection<? extends Action> getProjectActions(AbstractProject project) {
-		List<Action> actions = new ArrayList<Action>();
-                // @TODO : see how important it is that this gets expanded projectName
-		for (BuildWrapper wrapper : getProjectBuildWrappers(null)) {
-			actions.addAll(wrapper.getProjectActions(project));
+		// @TODO : see how important it is that this gets expanded projectName
+		AbstractProject<?, ?> template = getProject(project);
+		if (template == null) {
+			return Collections.emptyList();
+		}
+		long revision = TemplateRevisions.get(template.getFullName());
+		ProjectActionsMemo memo = actionsMemo;
+		if (memo == null || !memo.isFor(project, template.getFullName(), revision)) {
+			List<Action> actions = new ArrayList<Action>();
+			for (BuildWrapper wrapper : getFilter().apply(TemplateSnapshot.of(template).getBuildWrappers())) {
+				actions.addAll(wrapper.getProjectActions(project));
+			}
+			memo = new ProjectActionsMemo(project, template.getFullName(), revision, actions);
+			actionsMemo = memo;
 		}
-		return actions;
+		return memo.getActions();
 	}
 
 }
@@ -1,7 +1,9 @@
 package hudson.plugins.templateproject;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.console.HyperlinkNote;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractBuild;
@@ -10,14 +12,12 @@ import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.DependecyDeclarer;
 import hudson.model.DependencyGraph;
-import hudson.model.Hudson;
 import hudson.model.Item;
 import hudson.model.Project;
 import hudson.security.AccessControlled;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.Messages;
-import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 
 import java.io.IOException;
@@ -30,12 +30,23 @@ import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 public class ProxyBuilder extends Builder implements DependecyDeclarer {
 
 	private final String projectName;
 
+	private String includes;
+
+	private String excludes;
+
+	private String range;
+
+	private transient volatile StepFilter filter;
+
+	private transient volatile ProjectActionsMemo actionsMemo;
+
 	@DataBoundConstructor
 	public ProxyBuilder(String projectName) {
 		this.projectName = projectName;
@@ -45,6 +56,68 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 		return projectName;
 	}
 
+	/**
+	 * Types of the template builders to run, all of them if empty.
+	 *
+	 * @see StepFilter
+	 */
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = Util.fixEmptyAndTrim(includes);
+		this.filter = null;
+	}
+
+	/**
+	 * Types of the template builders not to run.
+	 */
+	public String getExcludes() {
+		return excludes;
+	}
+
+	@DataBoundSetter
+	public void setExcludes(String excludes) {
+		this.excludes = Util.fixEmptyAndTrim(excludes);
+		this.filter = null;
+	}
+
+	/**
+	 * Positions of the template builders to run, all of them if empty.
+	 */
+	public String getRange() {
+		return range;
+	}
+
+	/**
+	 * Kept as configured even if it cannot be parsed: the form reports it, and builds fail on it.
+	 */
+	@DataBoundSetter
+	public void setRange(String range) {
+		this.range = Util.fixEmptyAndTrim(range);
+		this.filter = null;
+	}
+
+	/**
+	 * @throws AbortException if the range cannot be parsed.
+	 */
+	void checkFilter() throws AbortException {
+		if (getFilter() == StepFilter.NONE) {
+			throw new AbortException("[TemplateProject] Invalid range of builders: '" + range + "'");
+		}
+	}
+
+	StepFilter getFilter() {
+		StepFilter f = filter;
+		if (f == null) {
+			f = StepFilter.ofConfigured(includes, excludes, range);
+			filter = f;
+		}
+		return f;
+	}
+
 	public String getExpandedProjectName(AbstractBuild<?, ?> build) {
 		return TemplateUtils.getExpandedProjectName(projectName, build);
 	}
@@ -53,24 +126,38 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 		return TemplateUtils.getProject(projectName, null);
 	}
 
+	/**
+	 * @param context the job using this step, relative names are resolved from.
+	 */
+	public AbstractProject<?, ?> getProject(Item context) {
+		return TemplateUtils.getProject(projectName, null, context);
+	}
+
 	public List<Builder> getProjectBuilders(AbstractBuild<?, ?> build) {
-		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
+		TemplateSnapshot snapshot = TemplateSnapshot.of(getProjectName(), build);
+		return snapshot == null ? Collections.<Builder>emptyList() : snapshot.getBuilders();
+	}
 
-		if (p instanceof Project) return ((Project)p).getBuilders();
-		else if (p instanceof MatrixProject) return ((MatrixProject)p).getBuilders();
-		else return Collections.emptyList();
+	/**
+	 * @return the builders of the template selected for the build, with nested templates flattened.
+	 * @throws AbortException if the templates reference each other, or the range cannot be parsed.
+	 */
+	public List<Builder> getPlannedBuilders(AbstractBuild<?, ?> build) throws AbortException {
+		checkFilter();
+		BuildResolutionCache cache = build == null ? null : BuildResolutionCache.of(build);
+		List<Builder> builders = cache == null ? null : cache.<Builder>getSteps(this);
+		if (builders == null) {
+			builders = BuilderPlan.of(getProjectName(), build, getFilter()).getBuilders();
+			if (cache != null) {
+				builders = cache.putSteps(this, builders);
+			}
+		}
+		return builders;
 	}
 
 	@Override
 	public void buildDependencyGraph(AbstractProject project, DependencyGraph graph) {
-		AbstractProject<?, ?> templateProject = (AbstractProject) Hudson.getInstance().getItem(getProjectName());
-		if (templateProject != null) {
-			for (Publisher publisher : templateProject.getPublishersList().toList()) {
-				if (publisher instanceof DependecyDeclarer) {
-					((DependecyDeclarer)publisher).buildDependencyGraph(project, graph);
-				}
-			}
-		}
+		DependencyDeclarers.buildDependencyGraph(getProject(project), DependencyDeclarers.Source.PUBLISHERS, StepFilter.ALL, project, graph);
 	}
 
 	
@@ -87,14 +174,18 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 			return true;
 		}
 		
+		public FormValidation doCheckRange(@QueryParameter String value) {
+			return StepFilter.checkRange(value);
+		}
+
 		/**
 		 * Form validation method.
 		 */
 		public FormValidation doCheckProjectName(@AncestorInPath AccessControlled anc, @QueryParameter String value) {
 			// Require CONFIGURE permission on this project
 			if (!anc.hasPermission(Item.CONFIGURE)) return FormValidation.ok();
-			Item item = Hudson.getInstance().getItemByFullName(
-					value, Item.class);
+			// relative to the job being configured
+			Item item = TemplateResolver.resolve(value, anc instanceof Item ? (Item) anc : null, Item.class);
 			if (item == null) {
 				return FormValidation.error(Messages.BuildTrigger_NoSuchProject(value,
 						AbstractProject.findNearest(value)
@@ -103,6 +194,17 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 			if (!(item instanceof Project) && !(item instanceof MatrixProject)) {
 				return FormValidation.error(Messages.BuildTrigger_NotBuildable(value));
 			}
+			// report template cycles now rather than when building
+			try {
+				BuilderPlan plan = BuilderPlan.compile((AbstractProject<?, ?>) item, null, StepFilter.ALL);
+				if (anc instanceof AbstractProject && plan.getTemplates().contains(((AbstractProject<?, ?>) anc).getFullName())) {
+					return FormValidation.error("Template projects reference each other: "
+							+ ((AbstractProject<?, ?>) anc).getFullName() + " -> " + value + " -> ... -> "
+							+ ((AbstractProject<?, ?>) anc).getFullName());
+				}
+			} catch (AbortException e) {
+				return FormValidation.error(e.getMessage());
+			}
 			return FormValidation.ok();
 		}
 	}
@@ -110,10 +212,13 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
 			BuildListener listener) throws InterruptedException, IOException {
-		for (Builder builder: getProjectBuilders(build)) {
-			AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
+		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
+		for (Builder builder: getPlannedBuilders(build)) {
 			listener.getLogger().println("[TemplateProject] Starting builders from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
-			if (!builder.perform(build, launcher, listener)) {
+			long start = System.currentTimeMillis();
+			boolean performed = builder.perform(build, launcher, listener);
+			TemplateTimingAction.record(build, p.getFullName(), TemplateTimingAction.Phase.BUILDER, builder, start);
+			if (!performed) {
 				listener.getLogger().println("[TemplateProject] FAILED performing builders from: '" + p.getFullDisplayName() + "'");
 				return false;
 			}
@@ -124,7 +229,14 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 
 	@Override
 	public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
-		for (Builder builder: getProjectBuilders(build)) {
+		List<Builder> builders;
+		try {
+			builders = getPlannedBuilders(build);
+		} catch (AbortException e) {
+			listener.error(e.getMessage());
+			return false;
+		}
+		for (Builder builder: builders) {
 			if (!builder.prebuild(build, listener)) {
 				return false;
 			}
@@ -132,14 +244,35 @@ public class ProxyBuilder extends Builder implements DependecyDeclarer {
 		return true;
 	}
 
+	/**
+	 * The actions are collected from the builders of the whole template chain,
+	 * and kept until one of the templates of the chain changes.
+	 */
 	@Override
 	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
-		List<Action> actions = new ArrayList<Action>();
 		// @TODO : see how important it is that this gets expanded projectName
-		for (Builder builder : getProjectBuilders(null)) {
-			actions.addAll(builder.getProjectActions(project));
+		AbstractProject<?, ?> template = getProject(project);
+		if (template == null) {
+			// project might not defined when loading the first time
+			return Collections.emptyList();
+		}
+		BuilderPlan plan;
+		try {
+			plan = BuilderPlan.of(getProjectName(), null, project, getFilter());
+		} catch (AbortException e) {
+			return Collections.emptyList();
+		}
+		long revision = TemplateRevisions.get(plan.getTemplates());
+		ProjectActionsMemo memo = actionsMemo;
+		if (memo == null || !memo.isFor(project, template.getFullName(), revision)) {
+			List<Action> actions = new ArrayList<Action>();
+			for (Builder builder : plan.getBuilders()) {
+				actions.addAll(builder.getProjectActions(project));
+			}
+			memo = new ProjectActionsMemo(project, template.getFullName(), revision, actions);
+			actionsMemo = memo;
 		}
-		return actions;
+		return memo.getActions();
 	}
 	
 }
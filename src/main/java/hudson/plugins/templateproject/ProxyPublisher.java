@@ -2,6 +2,7 @@ package hudson.plugins.templateproject;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.console.HyperlinkNote;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -9,8 +10,8 @@ import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.DependecyDeclarer;
 import hudson.model.DependencyGraph;
-import hudson.model.Hudson;
 import hudson.model.Item;
+import hudson.model.Result;
 import hudson.security.AccessControlled;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -22,18 +23,51 @@ import hudson.util.FormValidation;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 
+	/**
+	 * What to do with the remaining publishers of the template once the build failed.
+	 */
+	public enum FailurePolicy {
+		CONTINUE("Run them all"),
+		STOP("Stop at the first failure"),
+		SKIP_MONITORED("Only run the ones not depending on other builds");
+
+		private final String displayName;
+
+		FailurePolicy(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
 	private final String projectName;
 
+	private String parallelTypes;
+
+	private FailurePolicy failurePolicy;
+
+	private String includes;
+
+	private transient volatile StepFilter filter;
+
+	private transient volatile StepFilter parallelFilter;
+
+	private transient volatile ProjectActionsMemo actionsMemo;
+
 	@DataBoundConstructor
 	public ProxyPublisher(String projectName) {
 		this.projectName = projectName;
@@ -43,6 +77,70 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 		return projectName;
 	}
 
+	/**
+	 * Types of the template publishers known to be safe to run concurrently and
+	 * off the executor thread, none of them if empty.
+	 *
+	 * @see StepFilter
+	 */
+	public String getParallelTypes() {
+		return parallelTypes;
+	}
+
+	@DataBoundSetter
+	public void setParallelTypes(String parallelTypes) {
+		this.parallelTypes = Util.fixEmptyAndTrim(parallelTypes);
+		this.parallelFilter = null;
+	}
+
+	/**
+	 * @return the types of publishers to run concurrently, or null if none is.
+	 */
+	private StepFilter getParallelFilter() {
+		if (parallelTypes == null) {
+			return null;
+		}
+		StepFilter f = parallelFilter;
+		if (f == null) {
+			f = StepFilter.of(parallelTypes, null, null);
+			parallelFilter = f;
+		}
+		return f;
+	}
+
+	public FailurePolicy getFailurePolicy() {
+		return failurePolicy == null ? FailurePolicy.CONTINUE : failurePolicy;
+	}
+
+	@DataBoundSetter
+	public void setFailurePolicy(FailurePolicy failurePolicy) {
+		this.failurePolicy = failurePolicy;
+	}
+
+	/**
+	 * Types of the template publishers to run, all of them if empty.
+	 *
+	 * @see StepFilter
+	 */
+	public String getIncludes() {
+		return includes;
+	}
+
+	@DataBoundSetter
+	public void setIncludes(String includes) {
+		this.includes = Util.fixEmptyAndTrim(includes);
+		this.filter = null;
+	}
+
+	StepFilter getFilter() {
+		StepFilter f = filter;
+		if (f == null) {
+			f = StepFilter.of(includes, null, null);
+			filter = f;
+		}
+		return f;
+	}
+
 	public String getExpandedProjectName(AbstractBuild<?, ?> build) {
 		return TemplateUtils.getExpandedProjectName(projectName, build);
 	}
@@ -51,6 +149,13 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 		return TemplateUtils.getProject(projectName, null);
 	}
 
+	/**
+	 * @param context the job using this step, relative names are resolved from.
+	 */
+	public AbstractProject<?, ?> getProject(Item context) {
+		return TemplateUtils.getProject(projectName, null, context);
+	}
+
 	public BuildStepMonitor getRequiredMonitorService() {
 		return BuildStepMonitor.NONE;
 	}
@@ -60,9 +165,23 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 		return false;
 	}
 
+	/**
+	 * @return the publishers of the template selected for the build.
+	 */
 	public List<Publisher> getProjectPublishersList(AbstractBuild<?, ?> build) {
-		// @TODO: exception handling
-		return TemplateUtils.getProject(projectName, build).getPublishersList().toList();
+		BuildResolutionCache cache = build == null ? null : BuildResolutionCache.of(build);
+		List<Publisher> publishers = cache == null ? null : cache.<Publisher>getSteps(this);
+		if (publishers == null) {
+			TemplateSnapshot snapshot = TemplateSnapshot.of(projectName, build);
+			if (snapshot == null) {
+				return Collections.emptyList();
+			}
+			publishers = getFilter().apply(snapshot.getPublishers());
+			if (cache != null) {
+				publishers = cache.putSteps(this, publishers);
+			}
+		}
+		return publishers;
 	}
 
 	@Override
@@ -79,30 +198,80 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
 			BuildListener listener) throws InterruptedException, IOException {
 		boolean publishersResult = true;
-		for (Publisher publisher : getProjectPublishersList(build)) {
-			AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
-			listener.getLogger().println("[TemplateProject] Starting publishers from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
-			if (!publisher.perform(build, launcher, listener)) {
-				listener.getLogger().println("[TemplateProject] FAILED performing publishers from: '" + p.getFullDisplayName() + "'");
+		AbstractProject p = TemplateUtils.getProject(getProjectName(), build);
+		if (p == null) {
+			listener.error("[TemplateProject] Template Project '" + getExpandedProjectName(build) + "' not found.");
+			return false;
+		}
+		FailurePolicy policy = getFailurePolicy();
+		List<Publisher> publishers = getProjectPublishersList(build);
+		StepFilter parallelAllowed = getParallelFilter();
+		for (int i = 0; i < publishers.size();) {
+			if (policy != FailurePolicy.CONTINUE && isFailed(build, publishersResult)) {
+				if (policy == FailurePolicy.STOP) {
+					listener.getLogger().println("[TemplateProject] Build failed, skipping the remaining publishers from: '" + p.getFullDisplayName() + "'");
+					break;
+				}
+				if (publishers.get(i).getRequiredMonitorService() != BuildStepMonitor.NONE) {
+					listener.getLogger().println("[TemplateProject] Build failed, skipping " + publishers.get(i).getDescriptor().getDisplayName()
+							+ " from: '" + p.getFullDisplayName() + "'");
+					i++;
+					continue;
+				}
+			}
+			int end = parallelAllowed != null ? ParallelPublishers.endOfBatch(publishers, i, parallelAllowed) : i + 1;
+			if (end - i > 1) {
+				if (!ParallelPublishers.perform(this, publishers.subList(i, end), p, build, launcher, listener)) {
+					publishersResult = false;
+				}
+			} else if (!performPublisher(publishers.get(i), p, build, launcher, listener)) {
 				publishersResult = false;
-			} else {
-				listener.getLogger().println("[TemplateProject] Successfully performed publishers from: '" + p.getFullDisplayName() + "'");
 			}
+			i = end;
 		}
 		return publishersResult;
 	}
 
+	private static boolean isFailed(AbstractBuild<?, ?> build, boolean publishersResult) {
+		Result result = build.getResult();
+		return !publishersResult || (result != null && result.isWorseOrEqualTo(Result.FAILURE));
+	}
+
+	boolean performPublisher(Publisher publisher, AbstractProject<?, ?> p, AbstractBuild<?, ?> build, Launcher launcher,
+			BuildListener listener) throws InterruptedException, IOException {
+		listener.getLogger().println("[TemplateProject] Starting publishers from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
+		long start = System.currentTimeMillis();
+		boolean performed = publisher.perform(build, launcher, listener);
+		TemplateTimingAction.record(build, p.getFullName(), TemplateTimingAction.Phase.PUBLISHER, publisher, start);
+		if (!performed) {
+			listener.getLogger().println("[TemplateProject] FAILED performing publishers from: '" + p.getFullDisplayName() + "'");
+			return false;
+		}
+		listener.getLogger().println("[TemplateProject] Successfully performed publishers from: '" + p.getFullDisplayName() + "'");
+		return true;
+	}
+
+	/**
+	 * The actions are kept until the template changes.
+	 */
 	@Override
 	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
-		List<Action> actions = new ArrayList<Action>();
 		// project might not defined when loading the first time
-		AbstractProject<?, ?> templateProject = getProject();
-		if (templateProject != null) {
-			for (Publisher publisher : templateProject.getPublishersList().toList()) {
+		AbstractProject<?, ?> templateProject = getProject(project);
+		if (templateProject == null) {
+			return Collections.emptyList();
+		}
+		long revision = TemplateRevisions.get(templateProject.getFullName());
+		ProjectActionsMemo memo = actionsMemo;
+		if (memo == null || !memo.isFor(project, templateProject.getFullName(), revision)) {
+			List<Action> actions = new ArrayList<Action>();
+			for (Publisher publisher : getFilter().apply(TemplateSnapshot.of(templateProject).getPublishers())) {
 				actions.addAll(publisher.getProjectActions(project));
 			}
+			memo = new ProjectActionsMemo(project, templateProject.getFullName(), revision, actions);
+			actionsMemo = memo;
 		}
-		return actions;
+		return memo.getActions();
 	}
 
 	/**
@@ -111,14 +280,7 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 	 *  {@inheritDoc} 
 	 */
 	public void buildDependencyGraph(AbstractProject project, DependencyGraph graph) {
-		AbstractProject<?, ?> templateProject = getProject();
-		if (templateProject != null) {
-			for (Publisher publisher : templateProject.getPublishersList().toList()) {
-				if (publisher instanceof DependecyDeclarer) {
-					((DependecyDeclarer)publisher).buildDependencyGraph(project, graph);
-				}
-			}
-		}
+		DependencyDeclarers.buildDependencyGraph(getProject(project), DependencyDeclarers.Source.PUBLISHERS, getFilter(), project, graph);
 	}
 
 	@Extension
@@ -140,8 +302,8 @@ public class ProxyPublisher extends Recorder implements DependecyDeclarer {
 		public FormValidation doCheckProjectName(@AncestorInPath AccessControlled anc, @QueryParameter String value) {
 			// Require CONFIGURE permission on this project
 			if (!anc.hasPermission(Item.CONFIGURE)) return FormValidation.ok();
-			Item item = Hudson.getInstance().getItemByFullName(
-					value, Item.class);
+			// relative to the job being configured
+			Item item = TemplateResolver.resolve(value, anc instanceof Item ? (Item) anc : null, Item.class);
 			if (item == null) {
 				return FormValidation.error(Messages.BuildTrigger_NoSuchProject(value,
 						AbstractProject.findNearest(value)
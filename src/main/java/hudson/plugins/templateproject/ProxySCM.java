@@ -1,16 +1,17 @@
 package hudson.plugins.templateproject;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.console.HyperlinkNote;
 import hudson.Util;
 import hudson.model.BuildListener;
+import hudson.model.Hudson;
 import hudson.model.Item;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.Run;
 import hudson.scm.ChangeLogParser;
@@ -32,17 +33,21 @@ import javax.annotation.Nonnull;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.util.List;
-import org.jenkinsci.plugins.multiplescms.MultiSCM;
-import org.jenkinsci.plugins.multiplescms.MultiSCMRevisionState;
 
 
 public class ProxySCM extends SCM {
 
 	private final String projectName;
 
+	private boolean checkoutCache;
+
+	/** The template SCM last resolved, with the job it was resolved from. */
+	private transient volatile Delegate delegate;
+
 	@DataBoundConstructor
 	public ProxySCM(String projectName) {
 		this.projectName = projectName;
@@ -52,45 +57,136 @@ public class ProxySCM extends SCM {
 		return projectName;
 	}
 
+	/**
+	 * Whether new workspaces get seeded from a copy of the template checkout kept on each node.
+	 */
+	public boolean isCheckoutCache() {
+		return checkoutCache;
+	}
+
+	@DataBoundSetter
+	public void setCheckoutCache(boolean checkoutCache) {
+		this.checkoutCache = checkoutCache;
+	}
+
 	public String getExpandedProjectName(AbstractBuild<?, ?> build) {
 		return TemplateUtils.getExpandedProjectName(projectName, build);
 	}
 
 	// Primarily used for polling, not building.
 	public AbstractProject<?, ?> getProject() {
-		return TemplateUtils.getProject(projectName, null);
+		return getDelegate(null).template;
+	}
+
+	/**
+	 * @param context the job using this SCM, relative names are resolved from.
+	 */
+	public AbstractProject<?, ?> getProject(Item context) {
+		return TemplateUtils.getProject(projectName, null, context);
 	}
 
 	public SCM getProjectScm(AbstractBuild<?, ?> build) {
+		if (build == null) {
+			return getProjectScm();
+		}
 		try {
-			return TemplateUtils.getProject(projectName, build).getScm();
+			return TemplateSnapshot.of(projectName, build).getScm();
 		} catch (Exception e) {
 			return new NullSCM();
 		}
 	}
 
+	/**
+	 * The SCM of the template, as used outside of builds (polling, UI).
+	 * It is resolved once and kept until the template changes.
+	 */
 	public SCM getProjectScm() {
-		return getProjectScm(null);
+		return getDelegate(null).scm;
+	}
+
+	/**
+	 * @param context the job using this SCM, or null from the methods Jenkins calls without it:
+	 *            the job of the last resolution is used then, or else the indexed job using this SCM.
+	 */
+	private Delegate getDelegate(Item context) {
+		Delegate d = delegate;
+		if (context == null) {
+			context = d != null ? d.context : findJob();
+		}
+		String fullName = TemplateResolver.resolveName(projectName, context);
+		long revision = TemplateRevisions.get(fullName == null ? projectName : fullName);
+		if (d == null || d.context != context || d.revision != revision
+				|| !StringUtils.equals(d.template == null ? null : d.template.getFullName(), fullName)) {
+			AbstractProject<?, ?> template = getProject(context);
+			SCM scm;
+			try {
+				scm = template.getScm();
+			} catch (Exception e) {
+				scm = new NullSCM();
+			}
+			d = new Delegate(context, revision, template, scm);
+			delegate = d;
+		}
+		return d;
+	}
+
+	/**
+	 * @return the job using this SCM, looked up among the jobs configured with the same template name.
+	 */
+	private Item findJob() {
+		for (String fullName : TemplateIndex.get().getJobsWithSCM(projectName)) {
+			AbstractProject<?, ?> job = Hudson.getInstance().getItemByFullName(fullName, AbstractProject.class);
+			if (job != null && job.getScm() == this) {
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private static final class Delegate {
+		private final Item context;
+		private final long revision;
+		private final AbstractProject<?, ?> template;
+		private final SCM scm;
+
+		Delegate(Item context, long revision, AbstractProject<?, ?> template, SCM scm) {
+			this.context = context;
+			this.revision = revision;
+			this.template = template;
+			this.scm = scm;
+		}
 	}
 
 	public void checkout(@Nonnull Run<?,?> build, @Nonnull Launcher launcher, @Nonnull FilePath workspace,
 			@Nonnull TaskListener listener, @CheckForNull File changelogFile, @CheckForNull SCMRevisionState baseline)
 			throws IOException, InterruptedException {
+		if (!(build instanceof AbstractBuild)) {
+			throw new AbortException("[TemplateProject] Only builds of projects can check out the SCM of a template");
+		}
+		AbstractBuild<?, ?> abstractBuild = (AbstractBuild<?, ?>) build;
+		AbstractProject p = TemplateUtils.getProject(getProjectName(), abstractBuild);
+		SCM scm = getProjectScm(abstractBuild);
 
 		// Unique situation where MultiSCM has $None for SCMRevisionState
 		// Potentially due to SCM polling and references lost, or fixed with:
 		// https://github.com/jenkinsci/multiple-scms-plugin/pull/6
 		// https://issues.jenkins-ci.org/browse/JENKINS-27638
-		// Since MultiSCM is optional, might not be installed, hacky check string name.
-		if (getProjectScm((AbstractBuild) build).toString().contains("multiplescms")) {
+		if (MultiSCMSupport.isMultiSCM(scm)) {
 			if ((baseline == SCMRevisionState.NONE) || (baseline == null)) {
-				baseline = new MultiSCMRevisionState();
+				baseline = MultiSCMSupport.emptyRevisionState();
 			}
 		}
 
-		AbstractProject p = TemplateUtils.getProject(getProjectName(), (AbstractBuild) build);
 		listener.getLogger().println("[TemplateProject] Using SCM from: " + HyperlinkNote.encodeTo('/'+ p.getUrl(), p.getFullDisplayName()));
-		getProjectScm((AbstractBuild) build).checkout(build, launcher, workspace, listener, changelogFile, baseline);
+		CheckoutCache cache = checkoutCache ? CheckoutCache.of(abstractBuild, p.getFullName(), scm) : null;
+		long start = System.currentTimeMillis();
+		// only checkouts into empty workspaces get cached, reused ones hold the leftovers of earlier builds
+		boolean fresh = cache != null && cache.seed(workspace, listener);
+		scm.checkout(build, launcher, workspace, listener, changelogFile, baseline);
+		if (fresh) {
+			cache.store(workspace, listener);
+		}
+		TemplateTimingAction.record(abstractBuild, p.getFullName(), TemplateTimingAction.Phase.CHECKOUT, scm, start);
 	}
 
 	@Override
@@ -103,7 +199,7 @@ public class ProxySCM extends SCM {
 	public boolean pollChanges(AbstractProject project, Launcher launcher,
 			FilePath workspace, TaskListener listener) throws IOException,
 			InterruptedException {
-		return getProjectScm().pollChanges(project, launcher, workspace, listener);
+		return getDelegate(project).scm.pollChanges(project, launcher, workspace, listener);
 	}
 
 	@Extension
@@ -129,7 +225,8 @@ public class ProxySCM extends SCM {
 			if(StringUtils.isEmpty(value)) {
 				return FormValidation.error("Project cannot be empty");
 			}
-			Item item = Hudson.getInstance().getItemByFullName(value, Item.class);
+			// relative to the job being configured
+			Item item = TemplateResolver.resolve(value, anc instanceof Item ? (Item) anc : null, Item.class);
 			if (item == null) {
 				return FormValidation.error(Messages.BuildTrigger_NoSuchProject(value,
 						AbstractProject.findNearest(value).getName()));
@@ -163,7 +260,7 @@ public class ProxySCM extends SCM {
 	public boolean processWorkspaceBeforeDeletion(
 			AbstractProject<?, ?> project, FilePath workspace, Node node)
 			throws IOException, InterruptedException {
-		return getProjectScm().processWorkspaceBeforeDeletion(project, workspace, node);
+		return getDelegate(project).scm.processWorkspaceBeforeDeletion(project, workspace, node);
 	}
 
 	@Override
@@ -194,7 +291,14 @@ public class ProxySCM extends SCM {
 	protected PollingResult compareRemoteRevisionWith(AbstractProject<?, ?> project, Launcher launcher,
 			FilePath workspace, TaskListener listener, SCMRevisionState baseline)
 			throws IOException, InterruptedException {
-		return getProjectScm().poll(project, launcher, workspace, listener, baseline);
+		Delegate d = getDelegate(project);
+		long start = System.currentTimeMillis();
+		try {
+			return SharedPolling.poll(d.scm, d.template == null ? null : d.template.getFullName(),
+					project, launcher, workspace, listener, baseline);
+		} finally {
+			TemplateMetrics.poll(System.currentTimeMillis() - start);
+		}
 	}
 
 }
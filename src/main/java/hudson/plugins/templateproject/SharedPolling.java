@@ -0,0 +1,157 @@
+package hudson.plugins.templateproject;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Items;
+import hudson.model.TaskListener;
+import hudson.scm.PollingResult;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the polling of a template SCM between the jobs using it through {@link ProxySCM}.
+ *
+ * Jobs polling the same template from the same baseline get the same answer,
+ * so the remote is only polled once per interval for all of them; the others
+ * wait for that poll or reuse its result. Baselines are compared by content.
+ *
+ * Polls are not shared when the baseline is {@link SCMRevisionState#NONE},
+ * since the SCM then computes it from each job's own last build, nor when the
+ * SCM polls from the workspace, which differs from one job to the other, nor
+ * when the SCM configuration holds variables, which the SCM may expand with
+ * the parameters or environment of each job.
+ */
+final class SharedPolling {
+	private static final Logger LOGGER = Logger.getLogger(SharedPolling.class.getName());
+
+	/**
+	 * How long a polling result is reused, in seconds. 0 disables sharing.
+	 */
+	private static final long INTERVAL = TimeUnit.SECONDS.toMillis(Long.getLong(ProxySCM.class.getName() + ".sharedPollingInterval", 60));
+
+	private static final ConcurrentMap<String, Poll> POLLS = new ConcurrentHashMap<String, Poll>();
+
+	private static final AtomicLong LAST_SWEEP = new AtomicLong();
+
+	private static final class Poll {
+		private final FutureTask<PollingResult> task;
+		private final long timestamp = System.currentTimeMillis();
+
+		Poll(FutureTask<PollingResult> task) {
+			this.task = task;
+		}
+
+		boolean isExpired(long now) {
+			return task.isDone() && now - timestamp >= INTERVAL;
+		}
+	}
+
+	private SharedPolling() {
+	}
+
+	static PollingResult poll(final SCM scm, String template, final AbstractProject<?, ?> project, final Launcher launcher,
+			final FilePath workspace, final TaskListener listener, final SCMRevisionState baseline)
+			throws IOException, InterruptedException {
+		String key = getKey(scm, template, baseline);
+		if (key == null) {
+			return scm.poll(project, launcher, workspace, listener, baseline);
+		}
+		sweep();
+
+		while (true) {
+			long now = System.currentTimeMillis();
+			Poll poll = POLLS.get(key);
+			if (poll == null || poll.isExpired(now)) {
+				Poll fresh = new Poll(new FutureTask<PollingResult>(new Callable<PollingResult>() {
+					public PollingResult call() throws Exception {
+						return scm.poll(project, launcher, workspace, listener, baseline);
+					}
+				}));
+				boolean won = poll == null ? POLLS.putIfAbsent(key, fresh) == null : POLLS.replace(key, poll, fresh);
+				if (!won) {
+					continue;
+				}
+				fresh.task.run();
+				return get(key, fresh);
+			}
+
+			TemplateMetrics.sharedPoll();
+			listener.getLogger().println("[TemplateProject] Reusing the polling of '" + template + "' done "
+					+ Util.getTimeSpanString(now - poll.timestamp) + " ago for another job");
+			try {
+				return get(key, poll);
+			} catch (IOException e) {
+				// the job which polled will report it, try on our own
+				return scm.poll(project, launcher, workspace, listener, baseline);
+			}
+		}
+	}
+
+	private static PollingResult get(String key, Poll poll) throws IOException, InterruptedException {
+		try {
+			return poll.task.get();
+		} catch (ExecutionException e) {
+			POLLS.remove(key, poll);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return the key the poll is shared under, or null if it cannot be shared.
+	 */
+	private static String getKey(SCM scm, String template, SCMRevisionState baseline) {
+		if (INTERVAL <= 0 || template == null || baseline == null || baseline == SCMRevisionState.NONE
+				|| scm.requiresWorkspaceForPolling()) {
+			return null;
+		}
+		try {
+			if (Items.XSTREAM2.toXML(scm).indexOf('$') >= 0) {
+				return null;
+			}
+			return template + '\n' + Items.XSTREAM2.toXML(baseline);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.FINE, "Cannot serialize the SCM or polling baseline of " + template, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the expired polls, at most once per interval.
+	 */
+	private static void sweep() {
+		long now = System.currentTimeMillis();
+		long last = LAST_SWEEP.get();
+		if (now - last < INTERVAL || !LAST_SWEEP.compareAndSet(last, now)) {
+			return;
+		}
+		for (Iterator<Poll> it = POLLS.values().iterator(); it.hasNext();) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+}
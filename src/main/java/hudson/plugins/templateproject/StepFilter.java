@@ -0,0 +1,189 @@
+package hudson.plugins.templateproject;
+
+import hudson.Util;
+import hudson.model.Describable;
+import hudson.util.FormValidation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects which of the steps of a template a proxy step runs, by position and type.
+ *
+ * Types are given as a comma or whitespace separated list of descriptor ids or
+ * step class names, simple or fully qualified, e.g.
+ * {@code hudson.tasks.Shell, ArtifactArchiver}. Positions are given as a comma
+ * separated list of 1-based positions and inclusive ranges, open ended or not,
+ * e.g. {@code 1, 3-4, 6-}.
+ */
+final class StepFilter {
+
+	static final StepFilter ALL = new StepFilter(null, null, null);
+
+	/** Keeps no step, stands for settings that cannot be parsed. */
+	static final StepFilter NONE = new StepFilter();
+
+	/** Types of the steps to keep, or null to keep them all. */
+	private final Set<String> includes;
+
+	/** Types of the steps to drop, or null. */
+	private final Set<String> excludes;
+
+	/** Pairs of inclusive bounds of the positions to keep, or null to keep them all. */
+	private final int[] range;
+
+	/** Tells filters apart, the same for filters keeping the same steps. */
+	private final String key;
+
+	/**
+	 * @throws IllegalArgumentException if the range cannot be parsed.
+	 */
+	StepFilter(String includes, String excludes, String range) {
+		this.includes = parseTypes(includes);
+		this.excludes = parseTypes(excludes);
+		this.range = parseRange(range);
+		this.key = (this.includes == null ? "" : this.includes.toString()) + '|'
+				+ (this.excludes == null ? "" : this.excludes.toString()) + '|'
+				+ (this.range == null ? "" : Arrays.toString(this.range));
+	}
+
+	private StepFilter() {
+		this.includes = null;
+		this.excludes = null;
+		this.range = new int[0];
+		this.key = "none";
+	}
+
+	/**
+	 * @return the filter for the given settings, {@link #NONE} if the range
+	 *         cannot be parsed, as reported by {@link #checkRange}.
+	 */
+	static StepFilter ofConfigured(String includes, String excludes, String range) {
+		try {
+			return of(includes, excludes, range);
+		} catch (IllegalArgumentException e) {
+			return NONE;
+		}
+	}
+
+	/**
+	 * @return the filter for the given settings, {@link #ALL} if there are none.
+	 */
+	static StepFilter of(String includes, String excludes, String range) {
+		if (Util.fixEmptyAndTrim(includes) == null && Util.fixEmptyAndTrim(excludes) == null && Util.fixEmptyAndTrim(range) == null) {
+			return ALL;
+		}
+		return new StepFilter(includes, excludes, range);
+	}
+
+	private static Set<String> parseTypes(String types) {
+		types = Util.fixEmptyAndTrim(types);
+		if (types == null) {
+			return null;
+		}
+		Set<String> set = new LinkedHashSet<String>();
+		for (String type : types.split("[,\\s]+")) {
+			if (type.length() > 0) {
+				set.add(type);
+			}
+		}
+		return set.isEmpty() ? null : Collections.unmodifiableSet(set);
+	}
+
+	private static int[] parseRange(String range) {
+		range = Util.fixEmptyAndTrim(range);
+		if (range == null) {
+			return null;
+		}
+		String[] parts = range.split("\\s*,\\s*");
+		int[] bounds = new int[parts.length * 2];
+		for (int i = 0; i < parts.length; i++) {
+			String part = parts[i].trim();
+			int dash = part.indexOf('-');
+			try {
+				if (dash < 0) {
+					bounds[2 * i] = bounds[2 * i + 1] = Integer.parseInt(part);
+				} else {
+					String from = part.substring(0, dash).trim();
+					String to = part.substring(dash + 1).trim();
+					bounds[2 * i] = from.length() == 0 ? 1 : Integer.parseInt(from);
+					bounds[2 * i + 1] = to.length() == 0 ? Integer.MAX_VALUE : Integer.parseInt(to);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid step range: " + part);
+			}
+			if (bounds[2 * i] < 1 || bounds[2 * i] > bounds[2 * i + 1]) {
+				throw new IllegalArgumentException("Invalid step range: " + part);
+			}
+		}
+		return bounds;
+	}
+
+	/**
+	 * Form validation of a range of positions.
+	 */
+	static FormValidation checkRange(String range) {
+		try {
+			parseRange(range);
+			return FormValidation.ok();
+		} catch (IllegalArgumentException e) {
+			return FormValidation.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return a key for the caches of what gets derived from the steps the filter keeps.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	boolean isAll() {
+		return includes == null && excludes == null && range == null;
+	}
+
+	/**
+	 * @return the steps kept by the filter, in their original order.
+	 */
+	<T extends Describable<?>> List<T> apply(List<T> steps) {
+		if (isAll()) {
+			return steps;
+		}
+		List<T> kept = new ArrayList<T>();
+		for (int i = 0; i < steps.size(); i++) {
+			T step = steps.get(i);
+			if (inRange(i + 1) && matches(step)) {
+				kept.add(step);
+			}
+		}
+		return Collections.unmodifiableList(kept);
+	}
+
+	/**
+	 * @return whether the type of the step is kept, regardless of its position.
+	 */
+	boolean matches(Describable<?> step) {
+		return (includes == null || matches(includes, step)) && (excludes == null || !matches(excludes, step));
+	}
+
+	private boolean inRange(int position) {
+		if (range == null) {
+			return true;
+		}
+		for (int i = 0; i < range.length; i += 2) {
+			if (range[i] <= position && position <= range[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(Set<String> types, Describable<?> step) {
+		Class<?> c = step.getClass();
+		return types.contains(c.getName()) || types.contains(c.getSimpleName()) || types.contains(step.getDescriptor().getId());
+	}
+}
@@ -0,0 +1,383 @@
+package hudson.plugins.templateproject;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractProject;
+import hudson.scm.SCM;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reverse index from template project names to the jobs whose proxy steps
+ * reference them.
+ *
+ * The index is kept up to date incrementally: jobs are (re)indexed whenever
+ * their transient actions are computed, which Jenkins does for every job while
+ * loading, and whenever {@link ItemListenerImpl} sees a job being created,
+ * updated, moved or deleted. Template names are indexed under the full name
+ * they resolve to from the job, or as configured when they do not resolve,
+ * so parameterized names are only found under their unexpanded form.
+ *
+ * Relative names and names looked up in the folders above the job may resolve
+ * to another item once one gets created, moved or deleted. The jobs whose
+ * references may be affected are found through {@link #getAffectedBy}: the
+ * ones whose references resolved to the item or below it, and the ones whose
+ * configured names hold its name.
+ */
+final class TemplateIndex {
+
+	enum StepType {
+		BUILDER, PUBLISHER, BUILD_WRAPPER, SCM
+	}
+
+	static final class Reference {
+		private final String configuredName;
+		private final String fullName;
+		private final StepType type;
+
+		Reference(String configuredName, StepType type) {
+			this(configuredName, null, type);
+		}
+
+		/**
+		 * @param fullName the full name the configured name resolves to, or null if it does not.
+		 */
+		Reference(String configuredName, String fullName, StepType type) {
+			this.configuredName = configuredName;
+			this.fullName = fullName;
+			this.type = type;
+		}
+
+		/**
+		 * @return the full name of the template, or the name as configured if it does not resolve.
+		 */
+		String getTemplateName() {
+			return fullName != null ? fullName : configuredName;
+		}
+
+		/**
+		 * @return the template name, as configured.
+		 */
+		String getConfiguredName() {
+			return configuredName;
+		}
+
+		/**
+		 * @return the full name of the template, or null if the name does not resolve.
+		 */
+		String getFullName() {
+			return fullName;
+		}
+
+		StepType getType() {
+			return type;
+		}
+
+		/**
+		 * Whether the template name depends on build variables.
+		 */
+		boolean isParameterized() {
+			return configuredName.indexOf('$') >= 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Reference)) {
+				return false;
+			}
+			Reference other = (Reference) o;
+			return configuredName.equals(other.configuredName) && type == other.type
+					&& (fullName == null ? other.fullName == null : fullName.equals(other.fullName));
+		}
+
+		@Override
+		public int hashCode() {
+			return configuredName.hashCode() * 31 + type.hashCode();
+		}
+	}
+
+	private static final TemplateIndex INSTANCE = new TemplateIndex();
+
+	/** Job full name to the references it holds, sorted by job name. */
+	private final SortedMap<String, List<Reference>> byJob = new TreeMap<String, List<Reference>>();
+
+	/** Template name to the full names of the jobs referencing it, sorted by template name. */
+	private final SortedMap<String, Set<String>> byTemplate = new TreeMap<String, Set<String>>();
+
+	/** Names of the path segments of the configured template names to the full names of the jobs using them. */
+	private final Map<String, Set<String>> bySegment = new HashMap<String, Set<String>>();
+
+	TemplateIndex() {
+	}
+
+	static TemplateIndex get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * (Re)indexes the proxy steps currently configured on a job.
+	 *
+	 * @return whether the references of the job changed.
+	 */
+	boolean update(AbstractProject<?, ?> project) {
+		if (project instanceof MatrixConfiguration) {
+			// configurations share the steps of their parent
+			return false;
+		}
+		return update(project.getFullName(), scan(project));
+	}
+
+	/**
+	 * @return whether the references of the job changed.
+	 */
+	synchronized boolean update(String fullName, List<Reference> references) {
+		List<Reference> previous = unindex(fullName);
+		index(fullName, references);
+		return previous == null ? !references.isEmpty() : !previous.equals(references);
+	}
+
+	/**
+	 * Forgets a job, and everything below it when it is a folder.
+	 */
+	synchronized void remove(String fullName) {
+		unindex(fullName);
+		for (String job : new ArrayList<String>(under(fullName).keySet())) {
+			unindex(job);
+		}
+	}
+
+	/**
+	 * @return the full names of the jobs referencing the given template.
+	 */
+	synchronized Set<String> getReferrers(String templateName) {
+		Set<String> jobs = byTemplate.get(templateName);
+		return jobs == null ? Collections.<String>emptySet() : new TreeSet<String>(jobs);
+	}
+
+	/**
+	 * @return the full names of all the jobs referencing some template.
+	 */
+	synchronized Set<String> getJobs() {
+		return new TreeSet<String>(byJob.keySet());
+	}
+
+	/**
+	 * @return the full names of the jobs whose proxy steps contribute project actions.
+	 */
+	synchronized List<String> getJobsWithProjectActions() {
+		List<String> jobs = new ArrayList<String>();
+		for (Map.Entry<String, List<Reference>> entry : byJob.entrySet()) {
+			// the SCM does not contribute any project action
+			if (hasStepOtherThan(entry.getValue(), StepType.SCM)) {
+				jobs.add(entry.getKey());
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return the full names of the jobs whose SCM is taken from the template configured with this name.
+	 */
+	synchronized List<String> getJobsWithSCM(String configuredName) {
+		List<String> jobs = new ArrayList<String>();
+		for (Map.Entry<String, List<Reference>> entry : byJob.entrySet()) {
+			for (Reference reference : entry.getValue()) {
+				if (reference.getType() == StepType.SCM && reference.getConfiguredName().equals(configuredName)) {
+					jobs.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @param template only the references to this template, if not null.
+	 * @param folder only the references from the jobs under this folder, if not null.
+	 * @return the matching jobs and references, sorted by job name.
+	 */
+	synchronized SortedMap<String, List<Reference>> query(String template, String folder) {
+		SortedMap<String, List<Reference>> jobs = folder == null ? byJob : under(folder);
+		if (template != null) {
+			Set<String> referrers = byTemplate.get(template);
+			if (referrers == null) {
+				return new TreeMap<String, List<Reference>>();
+			}
+			SortedMap<String, List<Reference>> matches = new TreeMap<String, List<Reference>>();
+			for (String job : referrers) {
+				if (jobs == byJob || jobs.containsKey(job)) {
+					List<Reference> references = new ArrayList<Reference>();
+					for (Reference reference : byJob.get(job)) {
+						if (reference.getTemplateName().equals(template)) {
+							references.add(reference);
+						}
+					}
+					matches.put(job, references);
+				}
+			}
+			return matches;
+		}
+		return new TreeMap<String, List<Reference>>(jobs);
+	}
+
+	/**
+	 * @return the full names of the jobs whose references may resolve differently
+	 *         once the item with the given full name got created, moved or deleted.
+	 */
+	synchronized Set<String> getAffectedBy(String fullName) {
+		Set<String> jobs = new TreeSet<String>();
+		Set<String> referrers = byTemplate.get(fullName);
+		if (referrers != null) {
+			jobs.addAll(referrers);
+		}
+		for (Set<String> below : under(byTemplate, fullName).values()) {
+			jobs.addAll(below);
+		}
+		Set<String> users = bySegment.get(fullName.substring(fullName.lastIndexOf('/') + 1));
+		if (users != null) {
+			jobs.addAll(users);
+		}
+		return jobs;
+	}
+
+	synchronized List<Reference> getReferences(String fullName) {
+		List<Reference> references = byJob.get(fullName);
+		return references == null ? Collections.<Reference>emptyList() : references;
+	}
+
+	/**
+	 * @return the entries of the jobs below the given folder.
+	 */
+	private SortedMap<String, List<Reference>> under(String folder) {
+		return under(byJob, folder);
+	}
+
+	/**
+	 * @return the entries of the map whose keys are full names below the given folder.
+	 */
+	private static <V> SortedMap<String, V> under(SortedMap<String, V> map, String folder) {
+		String name = folder.endsWith("/") ? folder.substring(0, folder.length() - 1) : folder;
+		// '0' is the character following '/'
+		return map.subMap(name + '/', name + '0');
+	}
+
+	private void index(String fullName, List<Reference> references) {
+		if (references.isEmpty()) {
+			return;
+		}
+		byJob.put(fullName, references);
+		for (Reference reference : references) {
+			add(byTemplate, reference.getTemplateName(), fullName);
+			for (String segment : segments(reference)) {
+				add(bySegment, segment, fullName);
+			}
+		}
+	}
+
+	/**
+	 * @return the references the job had, or null if it had none.
+	 */
+	private List<Reference> unindex(String fullName) {
+		List<Reference> references = byJob.remove(fullName);
+		if (references == null) {
+			return null;
+		}
+		for (Reference reference : references) {
+			remove(byTemplate, reference.getTemplateName(), fullName);
+			for (String segment : segments(reference)) {
+				remove(bySegment, segment, fullName);
+			}
+		}
+		return references;
+	}
+
+	private static void add(Map<String, Set<String>> map, String key, String job) {
+		Set<String> jobs = map.get(key);
+		if (jobs == null) {
+			jobs = new TreeSet<String>();
+			map.put(key, jobs);
+		}
+		jobs.add(job);
+	}
+
+	private static void remove(Map<String, Set<String>> map, String key, String job) {
+		Set<String> jobs = map.get(key);
+		if (jobs != null) {
+			jobs.remove(job);
+			if (jobs.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return the names of the items the configured name goes through, which
+	 *         may resolve differently when an item of that name comes or goes.
+	 */
+	private static List<String> segments(Reference reference) {
+		if (reference.isParameterized()) {
+			return Collections.emptyList();
+		}
+		List<String> segments = new ArrayList<String>();
+		for (String segment : reference.getConfiguredName().split("/")) {
+			if (segment.length() > 0 && !segment.equals(".") && !segment.equals("..")) {
+				segments.add(segment);
+			}
+		}
+		return segments;
+	}
+
+	private static List<Reference> scan(AbstractProject<?, ?> project) {
+		List<Reference> references = new ArrayList<Reference>();
+		for (Builder builder : TemplateUtils.getBuilders(project)) {
+			if (builder instanceof ProxyBuilder) {
+				add(references, project, ((ProxyBuilder) builder).getProjectName(), StepType.BUILDER);
+			}
+		}
+		for (Publisher publisher : project.getPublishersList()) {
+			if (publisher instanceof ProxyPublisher) {
+				add(references, project, ((ProxyPublisher) publisher).getProjectName(), StepType.PUBLISHER);
+			}
+		}
+		for (BuildWrapper wrapper : TemplateUtils.getBuildWrappers(project)) {
+			if (wrapper instanceof ProxyBuildEnvironment) {
+				add(references, project, ((ProxyBuildEnvironment) wrapper).getProjectName(), StepType.BUILD_WRAPPER);
+			}
+		}
+		SCM scm = project.getScm();
+		if (scm instanceof ProxySCM) {
+			add(references, project, ((ProxySCM) scm).getProjectName(), StepType.SCM);
+		}
+		return references.isEmpty() ? Collections.<Reference>emptyList() : Collections.unmodifiableList(references);
+	}
+
+	/**
+	 * Indexes the full name of the template when it can be resolved from the job.
+	 */
+	private static void add(List<Reference> references, AbstractProject<?, ?> project, String templateName, StepType type) {
+		if (templateName == null) {
+			return;
+		}
+		String fullName = templateName.indexOf('$') < 0 ? TemplateResolver.resolveName(templateName, project) : null;
+		references.add(new Reference(templateName, fullName, type));
+	}
+
+	private static boolean hasStepOtherThan(List<Reference> references, StepType type) {
+		for (Reference reference : references) {
+			if (reference.getType() != type) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,176 @@
+package hudson.plugins.templateproject;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms about the use of templates, served in the Prometheus
+ * text format at {@code /templateProject/metrics}.
+ *
+ * Recording only updates atomic counters: once a template and step type have
+ * been seen, nothing gets allocated or locked, whatever the number of
+ * concurrent builds.
+ */
+final class TemplateMetrics {
+
+	enum Resolution {
+		HIT, MISS, NOT_FOUND
+	}
+
+	/** Upper bounds of the histogram buckets, in milliseconds. */
+	private static final long[] BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000 };
+
+	private static final AtomicLongArray RESOLUTIONS = new AtomicLongArray(Resolution.values().length);
+
+	/** Template name to the histograms of its steps. */
+	private static final ConcurrentMap<String, TemplateSteps> STEPS = new ConcurrentHashMap<String, TemplateSteps>();
+
+	private static final Histogram POLLS = new Histogram();
+
+	private static final AtomicLong SHARED_POLLS = new AtomicLong();
+
+	private static final AtomicLong LOAD_DURATION = new AtomicLong(-1);
+
+	private static final AtomicLong LOAD_JOBS = new AtomicLong(-1);
+
+	private TemplateMetrics() {
+	}
+
+	static void resolution(Resolution resolution) {
+		RESOLUTIONS.incrementAndGet(resolution.ordinal());
+	}
+
+	/**
+	 * @param stepType descriptor id of the step, or null for phases not tied to a single step.
+	 */
+	static void step(String template, TemplateTimingAction.Phase phase, String stepType, long millis) {
+		TemplateSteps steps = STEPS.get(template);
+		if (steps == null) {
+			TemplateSteps fresh = new TemplateSteps();
+			steps = STEPS.putIfAbsent(template, fresh);
+			if (steps == null) {
+				steps = fresh;
+			}
+		}
+		steps.get(phase, stepType == null ? "" : stepType).observe(millis);
+	}
+
+	static void poll(long millis) {
+		POLLS.observe(millis);
+	}
+
+	static void sharedPoll() {
+		SHARED_POLLS.incrementAndGet();
+	}
+
+	static void loaded(int jobs, long millis) {
+		LOAD_JOBS.set(jobs);
+		LOAD_DURATION.set(millis);
+	}
+
+	static void write(PrintWriter w) {
+		w.println("# HELP templateproject_resolutions_total Template resolutions in builds, by outcome.");
+		w.println("# TYPE templateproject_resolutions_total counter");
+		for (Resolution resolution : Resolution.values()) {
+			w.println("templateproject_resolutions_total{result=\"" + resolution.name().toLowerCase(Locale.ENGLISH) + "\"} "
+					+ RESOLUTIONS.get(resolution.ordinal()));
+		}
+
+		w.println("# HELP templateproject_step_duration_seconds Duration of the steps delegated to templates.");
+		w.println("# TYPE templateproject_step_duration_seconds histogram");
+		for (Map.Entry<String, TemplateSteps> entry : new TreeMap<String, TemplateSteps>(STEPS).entrySet()) {
+			TemplateSteps steps = entry.getValue();
+			for (TemplateTimingAction.Phase phase : TemplateTimingAction.Phase.values()) {
+				for (Map.Entry<String, Histogram> step : new TreeMap<String, Histogram>(steps.byPhase[phase.ordinal()]).entrySet()) {
+					step.getValue().write(w, "templateproject_step_duration_seconds", "template=\"" + escape(entry.getKey())
+							+ "\",phase=\"" + phase.name().toLowerCase(Locale.ENGLISH) + "\",step=\"" + escape(step.getKey()) + "\"");
+				}
+			}
+		}
+
+		w.println("# HELP templateproject_scm_poll_duration_seconds Duration of the polls of template SCMs.");
+		w.println("# TYPE templateproject_scm_poll_duration_seconds histogram");
+		POLLS.write(w, "templateproject_scm_poll_duration_seconds", "");
+		w.println("# HELP templateproject_scm_polls_shared_total Polls answered from the poll of another job.");
+		w.println("# TYPE templateproject_scm_polls_shared_total counter");
+		w.println("templateproject_scm_polls_shared_total " + SHARED_POLLS.get());
+
+		if (LOAD_JOBS.get() >= 0) {
+			w.println("# HELP templateproject_load_refresh_jobs Jobs whose transient actions got refreshed after startup.");
+			w.println("# TYPE templateproject_load_refresh_jobs gauge");
+			w.println("templateproject_load_refresh_jobs " + LOAD_JOBS.get());
+			w.println("# HELP templateproject_load_refresh_duration_seconds Time taken to refresh them.");
+			w.println("# TYPE templateproject_load_refresh_duration_seconds gauge");
+			w.println("templateproject_load_refresh_duration_seconds " + seconds(LOAD_DURATION.get()));
+		}
+	}
+
+	private static String seconds(long millis) {
+		return Double.toString(millis / 1000.0);
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static final class TemplateSteps {
+		/** Per phase, descriptor id to histogram. */
+		private final ConcurrentMap<String, Histogram>[] byPhase;
+
+		@SuppressWarnings("unchecked")
+		TemplateSteps() {
+			byPhase = new ConcurrentMap[TemplateTimingAction.Phase.values().length];
+			for (int i = 0; i < byPhase.length; i++) {
+				byPhase[i] = new ConcurrentHashMap<String, Histogram>();
+			}
+		}
+
+		Histogram get(TemplateTimingAction.Phase phase, String stepType) {
+			ConcurrentMap<String, Histogram> histograms = byPhase[phase.ordinal()];
+			Histogram histogram = histograms.get(stepType);
+			if (histogram == null) {
+				Histogram fresh = new Histogram();
+				histogram = histograms.putIfAbsent(stepType, fresh);
+				if (histogram == null) {
+					histogram = fresh;
+				}
+			}
+			return histogram;
+		}
+	}
+
+	private static final class Histogram {
+		/** Observations per bucket, not cumulative; the last one is for the values above all bounds. */
+		private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+		private final AtomicLong sum = new AtomicLong();
+
+		void observe(long millis) {
+			int i = 0;
+			while (i < BOUNDS.length && millis > BOUNDS[i]) {
+				i++;
+			}
+			buckets.incrementAndGet(i);
+			sum.addAndGet(millis);
+		}
+
+		void write(PrintWriter w, String name, String labels) {
+			String prefix = labels.length() == 0 ? "" : labels + ",";
+			long count = 0;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				count += buckets.get(i);
+				w.println(name + "_bucket{" + prefix + "le=\"" + seconds(BOUNDS[i]) + "\"} " + count);
+			}
+			count += buckets.get(BOUNDS.length);
+			w.println(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count);
+			String suffix = labels.length() == 0 ? "" : "{" + labels + "}";
+			w.println(name + "_sum" + suffix + " " + seconds(sum.get()));
+			w.println(name + "_count" + suffix + " " + count);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package hudson.plugins.templateproject;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Exposes the template usage over the remote API, at {@code /templateProject/api/json}.
+ *
+ * The usage is served from the {@link TemplateIndex}, and can be narrowed with
+ * the {@code template} and {@code folder} query parameters and paged with
+ * {@code start} and {@code limit}. Only the jobs the user can see are listed.
+ * The {@code template} parameter takes the full name the references resolve
+ * to, as in {@link Usage#getTemplateFullName}, not the name as configured.
+ *
+ * {@code /templateProject/metrics} serves the {@link TemplateMetrics} in the
+ * Prometheus text format.
+ */
+@Extension
+public class TemplateProjectRootAction implements RootAction {
+
+	/** Page size used when no limit is given. */
+	static final int DEFAULT_LIMIT = 1000;
+
+	@ExportedBean(defaultVisibility = 2)
+	public static class Usage {
+		private final String job;
+		private final String template;
+		private final String templateFullName;
+		private final String type;
+		private final boolean parameterized;
+
+		Usage(String job, TemplateIndex.Reference reference) {
+			this.job = job;
+			this.template = reference.getConfiguredName();
+			this.templateFullName = reference.getFullName();
+			this.type = reference.getType().name();
+			this.parameterized = reference.isParameterized();
+		}
+
+		/** Full name of the job referencing the template. */
+		@Exported
+		public String getJob() {
+			return job;
+		}
+
+		/** Template name, as configured. */
+		@Exported
+		public String getTemplate() {
+			return template;
+		}
+
+		/** Full name of the template the name resolves to from the job, null if it does not. */
+		@Exported
+		public String getTemplateFullName() {
+			return templateFullName;
+		}
+
+		/** One of BUILDER, PUBLISHER, BUILD_WRAPPER or SCM. */
+		@Exported
+		public String getType() {
+			return type;
+		}
+
+		@Exported
+		public boolean isParameterized() {
+			return parameterized;
+		}
+	}
+
+	/**
+	 * What {@code api/json} and friends serve: the template usage matching the request.
+	 */
+	@ExportedBean
+	public static class Report {
+		private final List<Usage> usages = new ArrayList<Usage>();
+		private int total;
+
+		Report(String template, String folder, int start, int limit) {
+			for (Map.Entry<String, List<TemplateIndex.Reference>> entry : TemplateIndex.get().query(template, folder).entrySet()) {
+				if (Hudson.getInstance().getItemByFullName(entry.getKey(), AbstractProject.class) == null) {
+					// not visible to the current user
+					continue;
+				}
+				for (TemplateIndex.Reference reference : entry.getValue()) {
+					if (total >= start && usages.size() < limit) {
+						usages.add(new Usage(entry.getKey(), reference));
+					}
+					total++;
+				}
+			}
+		}
+
+		/**
+		 * The references of the requested page, in job name order.
+		 */
+		@Exported(inline = true)
+		public List<Usage> getUsages() {
+			return usages;
+		}
+
+		/**
+		 * Number of references matching the request, regardless of paging.
+		 */
+		@Exported
+		public int getTotal() {
+			return total;
+		}
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Template Project";
+	}
+
+	public String getUrlName() {
+		return "templateProject";
+	}
+
+	public Api getApi() {
+		Hudson.getInstance().checkPermission(Hudson.READ);
+		StaplerRequest req = Stapler.getCurrentRequest();
+		String template = req == null ? null : StringUtils.trimToNull(req.getParameter("template"));
+		String folder = req == null ? null : StringUtils.trimToNull(req.getParameter("folder"));
+		int start = req == null ? 0 : Math.max(0, getInt(req, "start", 0));
+		int limit = req == null ? DEFAULT_LIMIT : Math.max(0, getInt(req, "limit", DEFAULT_LIMIT));
+		return new Api(new Report(template, folder, start, limit));
+	}
+
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Hudson.getInstance().checkPermission(Hudson.READ);
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		PrintWriter w = rsp.getWriter();
+		TemplateMetrics.write(w);
+		w.flush();
+	}
+
+	private static int getInt(StaplerRequest req, String name, int defaultValue) {
+		String value = req.getParameter(name);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package hudson.plugins.templateproject;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.security.ACL;
+
+import java.util.Map;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Keeps builds in the queue while the templates they reference cannot be
+ * resolved, instead of letting them take an executor and fail halfway.
+ *
+ * Template names are expanded with the global environment variables and the
+ * parameters of the queued build. Names still containing variables afterwards
+ * (matrix axes, node variables, build variables only known once the build
+ * runs) are left for the build to resolve.
+ */
+@Extension
+public class TemplateQueueTaskDispatcher extends QueueTaskDispatcher {
+
+	/** The global variables, computed once per resolver generation rather than for each queued job. */
+	private static volatile GlobalVariables global;
+
+	@Override
+	public CauseOfBlockage canRun(Queue.Item item) {
+		if (!(item.task instanceof AbstractProject)) {
+			return null;
+		}
+		AbstractProject<?, ?> project = (AbstractProject<?, ?>) item.task;
+		Map<String, String> variables = null;
+		for (TemplateIndex.Reference reference : TemplateIndex.get().getReferences(project.getFullName())) {
+			if (variables == null) {
+				variables = getVariables(item);
+			}
+			String name = TemplateUtils.expand(reference.getConfiguredName(), variables);
+			if (name.indexOf('$') >= 0) {
+				continue;
+			}
+			if (!exists(name, project)) {
+				return new MissingTemplate(name);
+			}
+		}
+		return null;
+	}
+
+	private static boolean exists(String name, AbstractProject<?, ?> project) {
+		// the queue may be maintained on behalf of anybody
+		SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+		try {
+			return TemplateResolver.resolve(name, project, AbstractProject.class) != null;
+		} finally {
+			SecurityContextHolder.setContext(oldContext);
+		}
+	}
+
+	/**
+	 * Mirrors {@link ExpansionVariables#collect} as far as it is known before the build starts.
+	 */
+	private static Map<String, String> getVariables(Queue.Item item) {
+		Map<String, String> variables = getGlobalVariables();
+		ParametersAction parameters = item.getAction(ParametersAction.class);
+		if (parameters != null) {
+			for (ParameterValue p : parameters) {
+				try {
+					String v = p.createVariableResolver(null).resolve(p.getName());
+					if (v != null) {
+						variables.put(p.getName(), v);
+					}
+				} catch (RuntimeException e) {
+					// the value needs the build to be computed
+				}
+			}
+		}
+		return variables;
+	}
+
+	private static EnvVars getGlobalVariables() {
+		long generation = TemplateResolver.getGeneration();
+		GlobalVariables g = global;
+		if (g == null || g.generation != generation) {
+			g = new GlobalVariables(generation, ExpansionVariables.global());
+			global = g;
+		}
+		// completed with the parameters of each item
+		return new EnvVars(g.variables);
+	}
+
+	/**
+	 * Called when the global configuration, holding the global node properties, is saved.
+	 */
+	static void globalChanged() {
+		global = null;
+	}
+
+	private static final class GlobalVariables {
+		private final long generation;
+		private final EnvVars variables;
+
+		GlobalVariables(long generation, EnvVars variables) {
+			this.generation = generation;
+			this.variables = variables;
+		}
+	}
+
+	public static final class MissingTemplate extends CauseOfBlockage {
+		private final String name;
+
+		MissingTemplate(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Template project '" + name + "' does not exist";
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.ACL;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Finds the item a template name designates, from the job using it.
+ *
+ * <ul>
+ * <li>Names starting with {@code ./} or {@code ../} are relative to the folder of the job.</li>
+ * <li>Other names are looked up in the folder of the job, then in each of its
+ * ancestors, nearest first, and last from the root, as full names.</li>
+ * </ul>
+ *
+ * What names resolve to is cached per folder until an item gets created,
+ * renamed, moved or deleted. Names are resolved regardless of the permissions
+ * of the current user, who then only gets the item if allowed to see it.
+ */
+final class TemplateResolver {
+
+	private static final String NOT_FOUND = "";
+
+	/** Folder and name to the full name of the item found, or {@link #NOT_FOUND}. */
+	private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+
+	/** Bumped on each clear, so names resolved concurrently with one are not cached. */
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private TemplateResolver() {
+	}
+
+	/**
+	 * @param context the job using the template, or null to only take full names.
+	 * @return the item the name designates, if there is one of that type the user can see.
+	 */
+	static <T extends Item> T resolve(String name, Item context, Class<T> type) {
+		String fullName = resolveName(name, context);
+		return fullName == null ? null : Hudson.getInstance().getItemByFullName(fullName, type);
+	}
+
+	/**
+	 * @param context the job using the template, or null to only take full names.
+	 * @return the full name of the item the name designates, or null if there is none.
+	 */
+	static String resolveName(String name, Item context) {
+		if (name == null) {
+			return null;
+		}
+		String key = key(name, context);
+		String fullName = NAMES.get(key);
+		if (fullName == null) {
+			long generation = GENERATION.get();
+			fullName = find(name, context == null ? null : context.getParent());
+			if (fullName == null) {
+				fullName = NOT_FOUND;
+			}
+			if (generation == GENERATION.get()) {
+				NAMES.put(key, fullName);
+				if (generation != GENERATION.get()) {
+					// a clear ran in between, and may have missed the entry
+					NAMES.remove(key, fullName);
+				}
+			}
+		}
+		return fullName.length() == 0 ? null : fullName;
+	}
+
+	/**
+	 * @return a key telling apart the same name used from different folders.
+	 */
+	static String key(String name, Item context) {
+		ItemGroup<?> folder = context == null ? null : context.getParent();
+		if (folder instanceof Item) {
+			return ((Item) folder).getFullName() + '\u0000' + name;
+		}
+		return name;
+	}
+
+	static boolean isRelative(String name) {
+		return name.startsWith("./") || name.startsWith("../");
+	}
+
+	/**
+	 * @return a number changing each time everything resolved so far is forgotten.
+	 */
+	static long getGeneration() {
+		return GENERATION.get();
+	}
+
+	/**
+	 * Forgets everything resolved so far.
+	 */
+	static void clear() {
+		GENERATION.incrementAndGet();
+		NAMES.clear();
+	}
+
+	private static String find(String name, ItemGroup<?> folder) {
+		Hudson hudson = Hudson.getInstance();
+		SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+		try {
+			if (isRelative(name)) {
+				Item item = hudson.getItem(name, folder == null ? hudson : folder);
+				return item == null ? null : item.getFullName();
+			}
+			// nearest ancestor first
+			while (folder instanceof Item) {
+				Item item = hudson.getItemByFullName(((Item) folder).getFullName() + '/' + name);
+				if (item != null) {
+					return item.getFullName();
+				}
+				folder = ((Item) folder).getParent();
+			}
+			Item item = hudson.getItemByFullName(name);
+			return item == null ? null : item.getFullName();
+		} finally {
+			SecurityContextHolder.setContext(oldContext);
+		}
+	}
+}
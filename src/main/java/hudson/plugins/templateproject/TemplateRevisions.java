@@ -0,0 +1,105 @@
+package hudson.plugins.templateproject;
+
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Items;
+import hudson.scm.SCM;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks when template projects last changed, so that what gets derived from
+ * them can be cached until they do.
+ *
+ * Revisions come from a single counter bumped on each change. The revision of
+ * a set of templates is the highest of their revisions, so it moves whenever
+ * any of them changes.
+ *
+ * Saving a project only counts as a change when the steps other jobs can
+ * delegate to (builders, publishers, build wrappers, SCM) differ from the last
+ * save, so editing e.g. the description of a template does not invalidate
+ * anything. The first save of a project after startup always counts.
+ */
+final class TemplateRevisions {
+
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private static final ConcurrentMap<String, Long> REVISIONS = new ConcurrentHashMap<String, Long>();
+
+	/** Revision of the projects not changed since the items were last loaded. */
+	private static volatile long loaded;
+
+	/** Full name to the hash of the delegated steps, as of the last save. */
+	private static final ConcurrentMap<String, String> HASHES = new ConcurrentHashMap<String, String>();
+
+	private TemplateRevisions() {
+	}
+
+	/**
+	 * Notes that the project with the given full name got created, saved,
+	 * renamed or deleted, and drops the caches built from it.
+	 */
+	static void changed(String fullName) {
+		HASHES.remove(fullName);
+		bump(fullName);
+	}
+
+	/**
+	 * Notes that a project got saved.
+	 *
+	 * @return whether its delegated steps changed since it was last saved.
+	 */
+	static boolean saved(AbstractProject<?, ?> project) {
+		String hash = hash(TemplateUtils.getBuilders(project), project.getPublishersList().toList(),
+				TemplateUtils.getBuildWrappers(project), project.getScm());
+		if (hash.equals(HASHES.put(project.getFullName(), hash))) {
+			return false;
+		}
+		bump(project.getFullName());
+		return true;
+	}
+
+	static String hash(List<Builder> builders, List<Publisher> publishers, List<BuildWrapper> buildWrappers, SCM scm) {
+		Object[] steps = {
+				new ArrayList<Builder>(builders), new ArrayList<Publisher>(publishers), new ArrayList<BuildWrapper>(buildWrappers), scm };
+		return Util.getDigestOf(Items.XSTREAM2.toXML(steps));
+	}
+
+	private static void bump(String fullName) {
+		REVISIONS.put(fullName, GENERATION.incrementAndGet());
+		BuilderPlan.invalidate(fullName);
+		TemplateSnapshot.invalidate(fullName);
+	}
+
+	/**
+	 * Notes that all the items got loaded again, e.g. when reloading the
+	 * configuration from disk: every project is a new object, and counts as changed.
+	 */
+	static void reloaded() {
+		loaded = GENERATION.incrementAndGet();
+		REVISIONS.clear();
+		HASHES.clear();
+		BuilderPlan.invalidateAll();
+		TemplateSnapshot.invalidateAll();
+	}
+
+	static long get(String fullName) {
+		Long revision = REVISIONS.get(fullName);
+		return revision == null ? loaded : revision;
+	}
+
+	static long get(Iterable<String> fullNames) {
+		long revision = 0;
+		for (String fullName : fullNames) {
+			revision = Math.max(revision, get(fullName));
+		}
+		return revision;
+	}
+}
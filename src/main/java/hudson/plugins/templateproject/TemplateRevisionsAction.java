@@ -0,0 +1,46 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records which revision of each template project a build used, as the content
+ * hash of the template's delegated steps.
+ *
+ * Builds using the same hash ran with the same template configuration, which
+ * helps telling whether a template change is what made a job start failing.
+ */
+public class TemplateRevisionsAction extends InvisibleAction {
+
+	private static final Object LOCK = new Object();
+
+	private final Map<String, String> revisions = new TreeMap<String, String>();
+
+	static void record(AbstractBuild<?, ?> build, String template, String hash) {
+		if (!build.isBuilding()) {
+			return;
+		}
+		TemplateRevisionsAction action;
+		synchronized (LOCK) {
+			action = build.getAction(TemplateRevisionsAction.class);
+			if (action == null) {
+				action = new TemplateRevisionsAction();
+				build.addAction(action);
+			}
+		}
+		synchronized (action) {
+			action.revisions.put(template, hash);
+		}
+	}
+
+	/**
+	 * @return the template full names and the hashes of the steps the build used.
+	 */
+	public synchronized Map<String, String> getRevisions() {
+		return Collections.unmodifiableMap(new TreeMap<String, String>(revisions));
+	}
+}
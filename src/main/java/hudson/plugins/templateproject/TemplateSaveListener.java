@@ -0,0 +1,57 @@
+package hudson.plugins.templateproject;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops what was derived from a template project when its delegated steps
+ * change, and lets the jobs referencing it pick up its new project actions.
+ *
+ * Only the jobs found in the {@link TemplateIndex} under the template's name
+ * get refreshed, in the background; jobs using a parameterized name are only
+ * refreshed when they are next saved or loaded.
+ */
+@Extension
+public class TemplateSaveListener extends SaveableListener {
+
+	@Override
+	public void onChange(Saveable o, XmlFile file) {
+		if (o instanceof AbstractProject) {
+			AbstractProject<?, ?> project = (AbstractProject<?, ?>) o;
+			if (TemplateRevisions.saved(project)) {
+				refreshReferrers(project.getFullName());
+			}
+		} else if (o instanceof Hudson) {
+			TemplateQueueTaskDispatcher.globalChanged();
+		}
+	}
+
+	private static void refreshReferrers(String template) {
+		List<String> referrers = new ArrayList<String>();
+		for (String name : TemplateIndex.get().getReferrers(template)) {
+			if (hasProjectActions(name, template)) {
+				referrers.add(name);
+			}
+		}
+		ItemListenerImpl.refreshLater(referrers);
+	}
+
+	/**
+	 * The SCM does not contribute any project action.
+	 */
+	private static boolean hasProjectActions(String job, String template) {
+		for (TemplateIndex.Reference reference : TemplateIndex.get().getReferences(job)) {
+			if (reference.getTemplateName().equals(template) && reference.getType() != TemplateIndex.StepType.SCM) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
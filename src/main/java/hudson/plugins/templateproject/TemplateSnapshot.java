@@ -0,0 +1,144 @@
+package hudson.plugins.templateproject;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.scm.SCM;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The steps of a template project, as they were when a build first used it.
+ *
+ * A build takes the snapshot of each template once and uses it in every phase,
+ * so editing a template while the build runs does not mix two configurations.
+ * Snapshots are immutable and shared by all the builds using the same revision
+ * of the template; a change to the template makes the next build take a new
+ * one while the running builds keep theirs.
+ */
+final class TemplateSnapshot {
+
+	private static final ConcurrentMap<String, TemplateSnapshot> SNAPSHOTS = new ConcurrentHashMap<String, TemplateSnapshot>();
+
+	private final AbstractProject<?, ?> template;
+
+	private final long revision;
+
+	private final List<Builder> builders;
+
+	private final List<Publisher> publishers;
+
+	private final List<BuildWrapper> buildWrappers;
+
+	private final SCM scm;
+
+	private volatile String hash;
+
+	private TemplateSnapshot(AbstractProject<?, ?> template, long revision) {
+		this.template = template;
+		this.revision = revision;
+		this.builders = copy(TemplateUtils.getBuilders(template));
+		this.publishers = copy(template.getPublishersList().toList());
+		this.buildWrappers = copy(TemplateUtils.getBuildWrappers(template));
+		this.scm = template.getScm();
+	}
+
+	private static <T> List<T> copy(List<T> steps) {
+		return steps.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<T>(steps));
+	}
+
+	AbstractProject<?, ?> getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return the {@link TemplateRevisions revision} of the template the steps were copied at.
+	 */
+	long getRevision() {
+		return revision;
+	}
+
+	List<Builder> getBuilders() {
+		return builders;
+	}
+
+	List<Publisher> getPublishers() {
+		return publishers;
+	}
+
+	List<BuildWrapper> getBuildWrappers() {
+		return buildWrappers;
+	}
+
+	SCM getScm() {
+		return scm;
+	}
+
+	/**
+	 * @return the content hash of the steps, as computed by {@link TemplateRevisions#hash}.
+	 */
+	String getHash() {
+		String h = hash;
+		if (h == null) {
+			h = TemplateRevisions.hash(builders, publishers, buildWrappers, scm);
+			hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Resolves the template of a build and gets its snapshot for that build.
+	 *
+	 * @return null if the template does not exist.
+	 */
+	static TemplateSnapshot of(String projectName, AbstractBuild<?, ?> build) {
+		AbstractProject<?, ?> template = TemplateUtils.getProject(projectName, build);
+		return template == null ? null : of(template, build);
+	}
+
+	/**
+	 * Gets the snapshot of the template a build uses, taking it the first time.
+	 */
+	static TemplateSnapshot of(AbstractProject<?, ?> template, AbstractBuild<?, ?> build) {
+		if (build == null) {
+			return of(template);
+		}
+		BuildResolutionCache cache = BuildResolutionCache.of(build);
+		TemplateSnapshot snapshot = cache.getSnapshot(template.getFullName());
+		if (snapshot == null) {
+			// matrix runs get the snapshot the matrix build took
+			snapshot = cache.putSnapshot(template.getFullName(), of(template));
+			TemplateRevisionsAction.record(build, template.getFullName(), snapshot.getHash());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Gets the snapshot of the current revision of the template.
+	 */
+	static TemplateSnapshot of(AbstractProject<?, ?> template) {
+		String name = template.getFullName();
+		// read before copying the steps, so a change made meanwhile gets picked up next time
+		long revision = TemplateRevisions.get(name);
+		TemplateSnapshot snapshot = SNAPSHOTS.get(name);
+		if (snapshot == null || snapshot.revision != revision || snapshot.template != template) {
+			snapshot = new TemplateSnapshot(template, revision);
+			SNAPSHOTS.put(name, snapshot);
+		}
+		return snapshot;
+	}
+
+	static void invalidate(String name) {
+		SNAPSHOTS.remove(name);
+	}
+
+	static void invalidateAll() {
+		SNAPSHOTS.clear();
+	}
+}
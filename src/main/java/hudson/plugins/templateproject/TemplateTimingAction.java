@@ -0,0 +1,155 @@
+package hudson.plugins.templateproject;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Describable;
+import hudson.model.Run;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jenkins.model.RunAction2;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records how long the steps delegated to template projects took in a build.
+ *
+ * Shown as a table on the build and exposed through the remote API, so the
+ * templated steps dominating the build times can be found across jobs.
+ */
+@ExportedBean
+public class TemplateTimingAction implements RunAction2 {
+
+	public enum Phase {
+		RESOLUTION, PRE_CHECKOUT, SET_UP, TEAR_DOWN, CHECKOUT, BUILDER, PUBLISHER
+	}
+
+	@ExportedBean(defaultVisibility = 2)
+	public static class Timing {
+		private final String template;
+		private final Phase phase;
+		private final String step;
+		private final long duration;
+
+		public Timing(String template, Phase phase, String step, long duration) {
+			this.template = template;
+			this.phase = phase;
+			this.step = step;
+			this.duration = duration;
+		}
+
+		@Exported
+		public String getTemplate() {
+			return template;
+		}
+
+		@Exported
+		public Phase getPhase() {
+			return phase;
+		}
+
+		/**
+		 * Display name of the delegated step, or null for phases not tied to a single step.
+		 */
+		@Exported
+		public String getStep() {
+			return step;
+		}
+
+		/**
+		 * Wall clock duration, in milliseconds.
+		 */
+		@Exported
+		public long getDuration() {
+			return duration;
+		}
+
+		public String getDurationString() {
+			return Util.getTimeSpanString(duration);
+		}
+	}
+
+	private static final Object LOCK = new Object();
+
+	private final List<Timing> timings = new CopyOnWriteArrayList<Timing>();
+
+	private transient Run<?, ?> run;
+
+	/**
+	 * Adds a timing to the build, if it is still running, and to the {@link TemplateMetrics}.
+	 *
+	 * @param start when the step started, as given by {@link System#currentTimeMillis()}.
+	 */
+	static void record(AbstractBuild<?, ?> build, String template, Phase phase, Describable<?> step, long start) {
+		long duration = System.currentTimeMillis() - start;
+		TemplateMetrics.step(template, phase, step == null ? null : step.getDescriptor().getId(), duration);
+		record(build, template, phase, step == null ? null : step.getDescriptor().getDisplayName(), duration);
+	}
+
+	static void record(AbstractBuild<?, ?> build, String template, Phase phase, long start) {
+		long duration = System.currentTimeMillis() - start;
+		TemplateMetrics.step(template, phase, null, duration);
+		record(build, template, phase, (String) null, duration);
+	}
+
+	private static void record(AbstractBuild<?, ?> build, String template, Phase phase, String step, long duration) {
+		if (build == null || !build.isBuilding()) {
+			return;
+		}
+		TemplateTimingAction action;
+		synchronized (LOCK) {
+			action = build.getAction(TemplateTimingAction.class);
+			if (action == null) {
+				action = new TemplateTimingAction();
+				build.addAction(action);
+			}
+		}
+		action.timings.add(new Timing(template, phase, step, duration));
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	@Exported(inline = true)
+	public List<Timing> getTimings() {
+		return timings;
+	}
+
+	@Exported
+	public long getTotalDuration() {
+		long total = 0;
+		for (Timing timing : timings) {
+			if (timing.getPhase() != Phase.RESOLUTION) {
+				total += timing.getDuration();
+			}
+		}
+		return total;
+	}
+
+	public String getTotalDurationString() {
+		return Util.getTimeSpanString(getTotalDuration());
+	}
+
+	public void onAttached(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public void onLoad(Run<?, ?> r) {
+		this.run = r;
+	}
+
+	public String getIconFileName() {
+		return "clock.png";
+	}
+
+	public String getDisplayName() {
+		return "Template Step Timings";
+	}
+
+	public String getUrlName() {
+		return "templateTimings";
+	}
+}
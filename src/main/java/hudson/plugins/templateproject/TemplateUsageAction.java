@@ -0,0 +1,73 @@
+package hudson.plugins.templateproject;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Hudson;
+import hudson.model.TransientProjectActionFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * "Used by" page of a template project, listing the jobs referencing it.
+ *
+ * The referrers are read from the {@link TemplateIndex}, so rendering this
+ * page does not walk the other jobs.
+ */
+public class TemplateUsageAction implements Action {
+
+	private final AbstractProject<?, ?> project;
+
+	public TemplateUsageAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	/**
+	 * @return the jobs referencing this project the current user can see.
+	 */
+	public List<AbstractProject<?, ?>> getReferrers() {
+		List<AbstractProject<?, ?>> referrers = new ArrayList<AbstractProject<?, ?>>();
+		for (String name : TemplateIndex.get().getReferrers(project.getFullName())) {
+			AbstractProject<?, ?> referrer = Hudson.getInstance().getItemByFullName(name, AbstractProject.class);
+			if (referrer != null) {
+				referrers.add(referrer);
+			}
+		}
+		return referrers;
+	}
+
+	public String getIconFileName() {
+		// only show up in the side panel of projects actually used as template
+		return TemplateIndex.get().getReferrers(project.getFullName()).isEmpty() ? null : "search.png";
+	}
+
+	public String getDisplayName() {
+		return "Used by";
+	}
+
+	public String getUrlName() {
+		return "templateUsage";
+	}
+
+	/**
+	 * Jenkins computes the transient actions of every project while loading it
+	 * and after each configuration change, which is when the project's own
+	 * proxy steps get (re)indexed.
+	 */
+	@Extension
+	public static class Factory extends TransientProjectActionFactory {
+
+		@Override
+		public Collection<? extends Action> createFor(AbstractProject target) {
+			TemplateIndex.get().update(target);
+			return Collections.singletonList(new TemplateUsageAction(target));
+		}
+	}
+}
@@ -1,38 +1,120 @@
 package hudson.plugins.templateproject;
 
-import hudson.EnvVars;
 import hudson.Util;
+import hudson.matrix.MatrixProject;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.BuildListener;
-import hudson.model.TaskListener;
-import hudson.model.Hudson;
-import hudson.util.LogTaskListener;
-import static java.util.logging.Level.INFO;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.Builder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class TemplateUtils {
 	private static final Logger logger = Logger.getLogger("TemplateProject");
 
+	/**
+	 * Resolves the template project. When a build is given, the name is expanded,
+	 * resolved from the job being built and the result is remembered for the rest
+	 * of that build. Without a build, only full names are resolved.
+	 */
 	public static AbstractProject<?, ?> getProject(String projectName, AbstractBuild<?, ?> build) {
-		String pName = projectName;
+		return getProject(projectName, build, build == null ? null : build.getProject().getRootProject());
+	}
 
-		if (build != null) {
-			pName = TemplateUtils.getExpandedProjectName(projectName, build);
+	/**
+	 * Resolves the template project, relative names and names found in the
+	 * folders above included.
+	 *
+	 * @param context the job the name is resolved from, or null to only resolve full names.
+	 * @see TemplateResolver
+	 */
+	public static AbstractProject<?, ?> getProject(String projectName, AbstractBuild<?, ?> build, Item context) {
+		if (projectName == null) {
+			return null;
+		}
+		if (build == null) {
+			return TemplateResolver.resolve(projectName, context, AbstractProject.class);
+		}
 
-			if (Hudson.getInstance().getItemByFullName(pName) == null) {
+		BuildResolutionCache cache = BuildResolutionCache.of(build);
+		String pName = TemplateUtils.getExpandedProjectName(projectName, build);
+		if (pName == null) {
+			return null;
+		}
+		String key = TemplateResolver.key(pName, context);
+		AbstractProject<?, ?> project = cache.getProject(key);
+		if (project != null) {
+			TemplateMetrics.resolution(TemplateMetrics.Resolution.HIT);
+		} else {
+			long start = System.currentTimeMillis();
+			project = TemplateResolver.resolve(pName, context, AbstractProject.class);
+			if (project == null) {
+				TemplateMetrics.resolution(TemplateMetrics.Resolution.NOT_FOUND);
 				logger.info("[TemplateProject] Template Project '" + pName + "' not found. Skipping.");
+				return null;
 			}
+			TemplateMetrics.resolution(TemplateMetrics.Resolution.MISS);
+			project = cache.putProject(key, project);
+			TemplateTimingAction.record(build, project.getFullName(), TemplateTimingAction.Phase.RESOLUTION, start);
 		}
-
-		return (AbstractProject<?, ?>) Hudson.getInstance().getItemByFullName(pName);
+		return project;
 	}
 
 	public static String getExpandedProjectName(String projectName, AbstractBuild<?, ?> build) {
-		// Limitation : Currently only supports build variable for replacement.
-		// Gets into infinite loop using `getEnvironment() since it loops
-		// back to `getScm().buildEnvVars()`
-		return Util.replaceMacro(projectName, build.getBuildVariables());
+		if (projectName == null) {
+			return null;
+		}
+		if (ExpansionVariables.isCollecting()) {
+			// resolving the template while collecting the variables to resolve it
+			return expand(projectName, build.getBuildVariables());
+		}
+		BuildResolutionCache cache = BuildResolutionCache.of(build);
+		String expandedName = cache.getExpandedName(projectName);
+		if (expandedName == null) {
+			// Not using `getEnvironment()`, it loops back to `getScm().buildEnvVars()`
+			Map<String, String> variables = cache.getVariables();
+			if (variables == null) {
+				Node node = ExpansionVariables.getNode(build);
+				variables = ExpansionVariables.collect(build, node);
+				if (node == null) {
+					// not kept for the build, as the node variables are missing
+					return expand(projectName, variables);
+				}
+				variables = cache.putVariables(variables);
+			}
+			expandedName = cache.putExpandedName(projectName, expand(projectName, variables));
+		}
+		return expandedName;
+	}
+
+	static String expand(String projectName, Map<String, String> variables) {
+		return Util.replaceMacro(projectName, variables);
+	}
+
+	static List<Builder> getBuilders(AbstractProject<?, ?> project) {
+		if (project instanceof Project) {
+			return ((Project) project).getBuilders();
+		} else if (project instanceof MatrixProject) {
+			return ((MatrixProject) project).getBuilders();
+		} else {
+			return Collections.emptyList();
+		}
+	}
+
+	static List<BuildWrapper> getBuildWrappers(AbstractProject<?, ?> project) {
+		if (project instanceof Project) {
+			return ((Project) project).getBuildWrappersList();
+		} else if (project instanceof MatrixProject) {
+			return ((MatrixProject) project).getBuildWrappersList();
+		} else {
+			return Collections.emptyList();
+		}
 	}
 
 }
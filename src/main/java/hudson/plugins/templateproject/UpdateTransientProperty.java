@@ -8,8 +8,9 @@ import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 
 /**
- * A property that is only used to trigger the transient actions creations 
- * under a project.
+ * A property that was only used to trigger the transient actions creations 
+ * under a project. It is not added anymore, but kept so that the jobs it
+ * got saved with still load.
  * 
  * @author william.bernardet@gmail.com
  *
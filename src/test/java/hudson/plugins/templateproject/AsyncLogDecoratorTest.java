@@ -0,0 +1,135 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncLogDecoratorTest {
+
+	/**
+	 * Stands for the end of a decorator chain.
+	 */
+	private static class Target extends OutputStream {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		final CountDownLatch flushed = new CountDownLatch(1);
+		volatile Thread writer;
+		volatile boolean closed;
+
+		@Override
+		public synchronized void write(int b) {
+			writer = Thread.currentThread();
+			content.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writer = Thread.currentThread();
+			content.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			flushed.countDown();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		synchronized String text() {
+			return content.toString();
+		}
+	}
+
+	@Test
+	public void outputKeepsItsOrder() throws IOException {
+		Target target = new Target();
+		OutputStream out = AsyncLogDecorator.decorate(target, "test");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			String line = "line " + i + "\n";
+			expected.append(line);
+			if (i % 3 == 0) {
+				for (byte b : line.getBytes()) {
+					out.write(b);
+				}
+			} else {
+				out.write(line.getBytes());
+			}
+		}
+		out.close();
+
+		assertEquals(expected.toString(), target.text());
+		assertTrue(target.closed);
+		assertNotSame(Thread.currentThread(), target.writer);
+	}
+
+	@Test
+	public void flushHandsTheOutputOver() throws Exception {
+		Target target = new Target();
+		OutputStream out = AsyncLogDecorator.decorate(target, "test");
+		out.write("partial line".getBytes());
+		out.flush();
+
+		assertTrue(target.flushed.await(10, TimeUnit.SECONDS));
+		assertEquals("partial line", target.text());
+		out.close();
+	}
+
+	@Test
+	public void closeOnAnInterruptedThread() throws IOException {
+		Target target = new Target();
+		OutputStream out = AsyncLogDecorator.decorate(target, "test");
+		out.write("tail of the log".getBytes());
+		Thread.currentThread().interrupt();
+		try {
+			out.close();
+		} finally {
+			// the interrupt is kept for the build
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals("tail of the log", target.text());
+		assertTrue(target.closed);
+	}
+
+	@Test
+	public void writeAfterCloseFails() throws IOException {
+		OutputStream out = AsyncLogDecorator.decorate(new Target(), "test");
+		out.close();
+		out.write('x');
+		try {
+			out.flush();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void decoratorFailuresReachTheBuild() throws IOException {
+		OutputStream out = AsyncLogDecorator.decorate(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("broken");
+			}
+		}, "test");
+		out.write("text".getBytes());
+		try {
+			out.close();
+			fail();
+		} catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+	}
+}
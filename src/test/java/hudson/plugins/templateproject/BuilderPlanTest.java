@@ -0,0 +1,135 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.Builder;
+import hudson.tasks.Shell;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class BuilderPlanTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private static List<String> commands(BuilderPlan plan) {
+		List<String> commands = new ArrayList<String>();
+		for (Builder builder : plan.getBuilders()) {
+			commands.add(((Shell) builder).getCommand());
+		}
+		return commands;
+	}
+
+	private static List<String> commands(String... commands) {
+		List<String> list = new ArrayList<String>();
+		for (String command : commands) {
+			list.add(command);
+		}
+		return list;
+	}
+
+	@Test
+	public void nestedTemplatesAreFlattened() throws Exception {
+		FreeStyleProject nested = j.createFreeStyleProject("nested");
+		nested.getBuildersList().add(new Shell("nested"));
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildersList().add(new Shell("before"));
+		template.getBuildersList().add(new ProxyBuilder("nested"));
+		template.getBuildersList().add(new Shell("after"));
+
+		assertEquals(commands("before", "nested", "after"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+	}
+
+	@Test
+	public void nestedFiltersApply() throws Exception {
+		FreeStyleProject nested = j.createFreeStyleProject("nested");
+		nested.getBuildersList().add(new Shell("one"));
+		nested.getBuildersList().add(new Shell("two"));
+		nested.getBuildersList().add(new Shell("three"));
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		ProxyBuilder proxy = new ProxyBuilder("nested");
+		proxy.setRange("2");
+		template.getBuildersList().add(proxy);
+		template.getBuildersList().add(new Shell("after"));
+
+		assertEquals(commands("two", "after"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+	}
+
+	@Test
+	public void plansAreKeptPerFilter() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildersList().add(new Shell("one"));
+		template.getBuildersList().add(new Shell("two"));
+
+		assertEquals(commands("one", "two"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+		assertEquals(commands("two"), commands(BuilderPlan.of("template", null, StepFilter.of(null, null, "2"))));
+		assertEquals(commands("one"), commands(BuilderPlan.of("template", null, StepFilter.of(null, null, "1"))));
+		assertEquals(commands("one", "two"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+	}
+
+	@Test
+	public void savingANestedTemplateRecompilesThePlan() throws Exception {
+		FreeStyleProject nested = j.createFreeStyleProject("nested");
+		nested.getBuildersList().add(new Shell("one"));
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildersList().add(new ProxyBuilder("nested"));
+		assertEquals(commands("one"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+
+		nested.getBuildersList().replace(new Shell("two"));
+
+		assertEquals(commands("two"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+	}
+
+	@Test
+	public void planOfAStaleSnapshotIsNotShared() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildersList().add(new Shell("one"));
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new ProxyBuilder("template"));
+		FreeStyleBuild build = new FreeStyleBuild(job);
+		// e.g. taken by a build wrapper before the builders run
+		TemplateSnapshot.of(template, build);
+
+		template.getBuildersList().replace(new Shell("two"));
+
+		// the build keeps the steps it started with
+		assertEquals(commands("one"), commands(BuilderPlan.of("template", build, StepFilter.ALL)));
+		// other builds get the saved ones
+		assertEquals(commands("two"), commands(BuilderPlan.of("template", null, StepFilter.ALL)));
+		assertEquals(commands("two"), commands(BuilderPlan.of("template", new FreeStyleBuild(job), StepFilter.ALL)));
+	}
+
+	@Test
+	public void invalidRangeIsKeptAndFailsTheBuild() throws Exception {
+		j.createFreeStyleProject("template").getBuildersList().add(new Shell("one"));
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		ProxyBuilder proxy = new ProxyBuilder("template");
+		proxy.setRange("2-1");
+		job.getBuildersList().add(proxy);
+
+		assertEquals("2-1", proxy.getRange());
+		FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+		j.assertLogContains("Invalid range of builders: '2-1'", build);
+		j.assertLogNotContains("+ one", build);
+	}
+
+	@Test
+	public void reloadDropsThePlansOfTheDiscardedProjects() throws Exception {
+		j.createFreeStyleProject("template").getBuildersList().add(new Shell("one"));
+		BuilderPlan.of("template", null, StepFilter.ALL);
+
+		j.jenkins.reload();
+
+		FreeStyleProject reloaded = (FreeStyleProject) j.jenkins.getItem("template");
+		assertSame(reloaded.getBuildersList().get(0), BuilderPlan.of("template", null, StepFilter.ALL).getBuilders().get(0));
+	}
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.Shell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SingleFileSCM;
+
+public class CheckoutCacheTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private FilePath copy() {
+		return j.jenkins.getRootPath().child("template-project-cache").child(Util.getDigestOf("template"));
+	}
+
+	private FreeStyleProject job(String name) throws Exception {
+		FreeStyleProject job = j.createFreeStyleProject(name);
+		ProxySCM scm = new ProxySCM("template");
+		scm.setCheckoutCache(true);
+		job.setScm(scm);
+		// left behind in the workspace for the next builds
+		job.getBuildersList().add(new Shell("echo " + name + " > untracked.txt"));
+		return job;
+	}
+
+	@Test
+	public void checkoutsIntoReusedWorkspacesAreNotCached() throws Exception {
+		j.createFreeStyleProject("template").setScm(new SingleFileSCM("tracked.txt", "v1"));
+		FreeStyleProject job = job("job");
+		((ProxySCM) job.getScm()).setCheckoutCache(false);
+		j.buildAndAssertSuccess(job);
+
+		((ProxySCM) job.getScm()).setCheckoutCache(true);
+		j.buildAndAssertSuccess(job);
+
+		assertFalse(copy().exists());
+	}
+
+	@Test
+	public void freshCheckoutsSeedOtherJobs() throws Exception {
+		j.createFreeStyleProject("template").setScm(new SingleFileSCM("tracked.txt", "v1"));
+		j.buildAndAssertSuccess(job("first"));
+		assertEquals("v1", copy().child("tracked.txt").readToString());
+		// taken before the build steps ran
+		assertFalse(copy().child("untracked.txt").exists());
+		copy().child("seeded.txt").write("seeded", "UTF-8");
+
+		FreeStyleBuild build = j.buildAndAssertSuccess(job("second"));
+
+		j.assertLogContains("Seeding the workspace from the cached checkout", build);
+		assertTrue(build.getWorkspace().child("seeded.txt").exists());
+		assertEquals("second\n", build.getWorkspace().child("untracked.txt").readToString());
+	}
+
+	@Test
+	public void copyIsReplacedOnceTheTemplateSCMChanged() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.setScm(new SingleFileSCM("tracked.txt", "v1"));
+		j.buildAndAssertSuccess(job("first"));
+		copy().child("seeded.txt").write("seeded", "UTF-8");
+
+		template.setScm(new SingleFileSCM("tracked.txt", "v2"));
+		FreeStyleBuild build = j.buildAndAssertSuccess(job("second"));
+
+		j.assertLogNotContains("Seeding the workspace from the cached checkout", build);
+		assertFalse(build.getWorkspace().child("seeded.txt").exists());
+		assertEquals("v2", copy().child("tracked.txt").readToString());
+		assertFalse(copy().child("seeded.txt").exists());
+	}
+}
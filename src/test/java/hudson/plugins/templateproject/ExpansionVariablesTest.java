@@ -0,0 +1,77 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.slaves.EnvironmentVariablesNodeProperty.Entry;
+import hudson.tasks.Shell;
+
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ExpansionVariablesTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void nodeNameOfTheMaster() throws Exception {
+		FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+
+		assertEquals("master", ExpansionVariables.collect(build, build.getBuiltOn()).get("NODE_NAME"));
+	}
+
+	@Test
+	public void precedence() throws Exception {
+		j.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(
+				new Entry("NODE_NAME", "global"), new Entry("GLOBAL", "global"), new Entry("NODE", "global"), new Entry("PARAM", "global")));
+		j.jenkins.getNodeProperties().add(new EnvironmentVariablesNodeProperty(
+				new Entry("NODE_NAME", "node"), new Entry("NODE", "node")));
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("PARAM", "param")));
+		FreeStyleBuild build = j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+		Map<String, String> env = ExpansionVariables.collect(build, build.getBuiltOn());
+
+		assertEquals("global", env.get("GLOBAL"));
+		assertEquals("node", env.get("NODE"));
+		// set last, as core does
+		assertEquals("master", env.get("NODE_NAME"));
+		assertEquals("param", env.get("PARAM"));
+		assertEquals("global", ExpansionVariables.global().get("GLOBAL"));
+	}
+
+	@Test
+	public void nodeOfABuildNotStartedYet() throws Exception {
+		FreeStyleBuild build = new FreeStyleBuild(j.createFreeStyleProject());
+
+		assertNull(ExpansionVariables.getNode(build));
+		assertNull(ExpansionVariables.collect(build, null).get("NODE_NAME"));
+	}
+
+	@Test
+	public void templatesOfTheAgentFromALogDecorator() throws Exception {
+		DumbSlave agent = j.createOnlineSlave();
+		j.createFreeStyleProject("master-template").getBuildersList().add(new Shell("echo from the master template"));
+		j.createFreeStyleProject(agent.getNodeName() + "-template").getBuildersList().add(new Shell("echo from the agent template"));
+		FreeStyleProject project = j.createFreeStyleProject();
+		project.setAssignedNode(agent);
+		// resolves the template while decorating the log, before the build is assigned its node
+		project.getBuildWrappersList().add(new ProxyBuildEnvironment("${NODE_NAME}-template"));
+		project.getBuildersList().add(new ProxyBuilder("${NODE_NAME}-template"));
+
+		FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+		j.assertLogContains("from the agent template", build);
+		j.assertLogNotContains("from the master template", build);
+	}
+}
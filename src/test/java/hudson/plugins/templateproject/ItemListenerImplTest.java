@@ -0,0 +1,35 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class ItemListenerImplTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void transientActionsCanBeRefreshedOnThisCore() {
+		assertNotNull("AbstractProject.updateTransientActions() not found", ItemListenerImpl.UPDATE_TRANSIENT_ACTIONS);
+	}
+
+	@Test
+	public void refreshDoesNotTouchTheConfiguration() throws Exception {
+		j.createFreeStyleProject("template");
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getPublishersList().add(new ProxyPublisher("template"));
+		String config = job.getConfigFile().asString();
+
+		ItemListenerImpl.refreshTransientActions(job);
+
+		assertTrue(job.getProperties().isEmpty());
+		assertEquals(config, job.getConfigFile().asString());
+	}
+}
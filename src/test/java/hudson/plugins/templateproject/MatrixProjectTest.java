@@ -0,0 +1,80 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.Shell;
+
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MatrixProjectTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private MatrixBuild build(String template) throws Exception {
+		MatrixProject project = j.createMatrixProject();
+		project.setAxes(new AxisList(new TextAxis("AXIS", "a", "b")));
+		project.getBuildersList().add(new ProxyBuilder(template));
+		return j.buildAndAssertSuccess(project);
+	}
+
+	@Test
+	public void runsReuseTheResolutionOfTheMatrixBuild() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildersList().add(new Shell("echo from the template"));
+
+		MatrixBuild build = build("template");
+
+		List<MatrixRun> runs = build.getExactRuns();
+		assertEquals(2, runs.size());
+		BuildResolutionCache parent = BuildResolutionCache.of(build);
+		assertNotNull(parent.getSnapshot("template"));
+		assertNotNull(parent.getPlan("template"));
+		for (MatrixRun run : runs) {
+			j.assertLogContains("from the template", run);
+			BuildResolutionCache cache = BuildResolutionCache.of(run);
+			assertSame(parent.getSnapshot("template"), cache.getSnapshot("template"));
+			assertSame(parent.getPlan("template"), cache.getPlan("template"));
+		}
+	}
+
+	@Test
+	public void parameterizedPlansStayWithTheirRun() throws Exception {
+		j.createFreeStyleProject("inner-a").getBuildersList().add(new Shell("echo from inner a"));
+		j.createFreeStyleProject("inner-b").getBuildersList().add(new Shell("echo from inner b"));
+		j.createFreeStyleProject("outer").getBuildersList().add(new ProxyBuilder("inner-${AXIS}"));
+
+		MatrixBuild build = build("outer");
+
+		MatrixRun a = build.getRun(build.getParent().getItem("AXIS=a").getCombination());
+		MatrixRun b = build.getRun(build.getParent().getItem("AXIS=b").getCombination());
+		j.assertLogContains("from inner a", a);
+		j.assertLogNotContains("from inner b", a);
+		j.assertLogContains("from inner b", b);
+		j.assertLogNotContains("from inner a", b);
+
+		// the plan depends on the axis, so the matrix build keeps none
+		assertNull(BuildResolutionCache.of(build).getPlan("outer"));
+		BuilderPlan planA = BuildResolutionCache.of(a).getPlan("outer");
+		BuilderPlan planB = BuildResolutionCache.of(b).getPlan("outer");
+		assertNotNull(planA);
+		assertNotNull(planB);
+		assertNotSame(planA, planB);
+		// while the snapshot of the template they share is taken once
+		assertSame(BuildResolutionCache.of(a).getSnapshot("outer"), BuildResolutionCache.of(b).getSnapshot("outer"));
+	}
+}
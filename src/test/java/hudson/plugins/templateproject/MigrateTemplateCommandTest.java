@@ -0,0 +1,120 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.Result;
+import hudson.security.GlobalMatrixAuthorizationStrategy;
+import hudson.tasks.BuildTrigger;
+import hudson.tasks.Builder;
+import hudson.tasks.Publisher;
+import hudson.tasks.Shell;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import jenkins.model.Jenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MigrateTemplateCommandTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+	private int run(String... args) {
+		return new MigrateTemplateCommand().main(Arrays.asList(args), Locale.ENGLISH, new ByteArrayInputStream(new byte[0]),
+				new PrintStream(new ByteArrayOutputStream()), new PrintStream(err));
+	}
+
+	private FreeStyleProject template(String name) throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject(name);
+		template.getBuildersList().add(new Shell("make"));
+		template.getPublishersList().add(new BuildTrigger("downstream", Result.SUCCESS));
+		return template;
+	}
+
+	@Test
+	public void extractIsIdempotent() throws Exception {
+		template("template");
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new Shell("make"));
+		job.getPublishersList().add(new BuildTrigger("downstream", Result.SUCCESS));
+
+		assertEquals(0, run("extract", "template"));
+		assertEquals(0, run("extract", "template"));
+
+		List<Builder> builders = job.getBuildersList().toList();
+		assertEquals(1, builders.size());
+		assertEquals("template", ((ProxyBuilder) builders.get(0)).getProjectName());
+		List<Publisher> publishers = job.getPublishersList().toList();
+		assertEquals(1, publishers.size());
+		assertEquals("template", ((ProxyPublisher) publishers.get(0)).getProjectName());
+	}
+
+	@Test
+	public void extractDoesNotAddASecondProxyPublisher() throws Exception {
+		template("template");
+		template("other");
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getPublishersList().add(new BuildTrigger("downstream", Result.SUCCESS));
+		job.getPublishersList().add(new ProxyPublisher("other"));
+
+		assertEquals(1, run("extract", "template"));
+
+		assertTrue(err.toString().contains("the job already uses the publishers of 'other'"));
+		assertEquals(2, job.getPublishersList().size());
+	}
+
+	@Test
+	public void inlineKeepsNestedFilters() throws Exception {
+		FreeStyleProject nested = j.createFreeStyleProject("nested");
+		nested.getBuildersList().add(new Shell("one"));
+		nested.getBuildersList().add(new Shell("two"));
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		ProxyBuilder proxy = new ProxyBuilder("nested");
+		proxy.setRange("2");
+		template.getBuildersList().add(proxy);
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new ProxyBuilder("template"));
+		TemplateIndex.get().update(job);
+
+		assertEquals(0, run("inline", "template"));
+
+		List<Builder> builders = job.getBuildersList().toList();
+		assertEquals(1, builders.size());
+		assertEquals("two", ((Shell) builders.get(0)).getCommand());
+	}
+
+	@Test
+	public void onlyJobsRewrittenNeedToBeConfigurable() throws Exception {
+		template("template");
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new Shell("make"));
+		j.createFreeStyleProject("other").getBuildersList().add(new Shell("other"));
+		j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+		GlobalMatrixAuthorizationStrategy strategy = new GlobalMatrixAuthorizationStrategy();
+		strategy.add(Jenkins.READ, "anonymous");
+		strategy.add(Item.READ, "anonymous");
+		j.jenkins.setAuthorizationStrategy(strategy);
+
+		assertEquals(0, run("extract", "--dry-run", "template"));
+		assertEquals("", err.toString());
+
+		assertEquals(1, run("extract", "template"));
+		assertTrue(err.toString().contains("Failed to rewrite job"));
+		assertFalse(err.toString().contains("other"));
+		assertTrue(job.getBuildersList().get(0) instanceof Shell);
+	}
+}
@@ -0,0 +1,158 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class ParallelPublishersTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private static final String POOL = "TemplateProject parallel publishers";
+
+	/** Step name to the name of the thread it ran on. */
+	static final Map<String, String> THREADS = new ConcurrentHashMap<String, String>();
+
+	public static class Step extends Recorder {
+		private final String name;
+		private final long sleep;
+		private final BuildStepMonitor monitor;
+
+		Step(String name, long sleep, BuildStepMonitor monitor) {
+			this.name = name;
+			this.sleep = sleep;
+			this.monitor = monitor;
+		}
+
+		Step(String name, long sleep) {
+			this(name, sleep, BuildStepMonitor.NONE);
+		}
+
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+			Thread.sleep(sleep);
+			THREADS.put(name, Thread.currentThread().getName());
+			listener.getLogger().println("step " + name);
+			return true;
+		}
+
+		public BuildStepMonitor getRequiredMonitorService() {
+			return monitor;
+		}
+
+		@TestExtension
+		public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+			@Override
+			public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+				return true;
+			}
+
+			@Override
+			public String getDisplayName() {
+				return "Test step";
+			}
+		}
+	}
+
+	private FreeStyleBuild build(String template, String parallelTypes) throws Exception {
+		FreeStyleProject job = j.createFreeStyleProject();
+		ProxyPublisher proxy = new ProxyPublisher(template);
+		proxy.setParallelTypes(parallelTypes);
+		job.getPublishersList().add(proxy);
+		return j.buildAndAssertSuccess(job);
+	}
+
+	private static void assertInOrder(String log, String... lines) {
+		int previous = -1;
+		for (String line : lines) {
+			int index = log.indexOf(line);
+			assertTrue(line + " after the previous lines", index > previous);
+			previous = index;
+		}
+	}
+
+	private static boolean inPool(String step) {
+		return THREADS.get(step).startsWith(POOL);
+	}
+
+	@Test
+	public void outputKeepsTheDeclaredOrder() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new Step("order-a", 1000));
+		template.getPublishersList().add(new Step("order-b", 0));
+		template.getPublishersList().add(new Step("order-c", 500));
+
+		FreeStyleBuild build = build("template", Step.class.getName());
+
+		assertInOrder(JenkinsRule.getLog(build), "step order-a", "step order-b", "step order-c");
+		assertTrue(inPool("order-a") && inPool("order-b") && inPool("order-c"));
+	}
+
+	@Test
+	public void onlyListedTypesNotWaitingForOtherBuildsRunInParallel() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new Step("safe-a", 0));
+		template.getPublishersList().add(new Step("safe-b", 0));
+		template.getPublishersList().add(new Step("safe-c", 0, BuildStepMonitor.BUILD));
+		template.getPublishersList().add(new Step("safe-d", 0));
+
+		FreeStyleBuild build = build("template", "Step");
+
+		assertInOrder(JenkinsRule.getLog(build), "step safe-a", "step safe-b", "step safe-c", "step safe-d");
+		assertTrue(inPool("safe-a") && inPool("safe-b"));
+		// waits for the previous build
+		assertFalse(inPool("safe-c"));
+		// a batch of one runs in place
+		assertFalse(inPool("safe-d"));
+	}
+
+	@Test
+	public void noTypesListedRunsEverythingInPlace() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new Step("none-a", 0));
+		template.getPublishersList().add(new Step("none-b", 0));
+
+		build("template", "");
+
+		assertFalse(inPool("none-a") || inPool("none-b"));
+	}
+
+	@Test
+	public void nestedTemplatesRunInPlaceInTheBatch() throws Exception {
+		FreeStyleProject inner = j.createFreeStyleProject("inner");
+		inner.getPublishersList().add(new Step("nested-x", 500));
+		inner.getPublishersList().add(new Step("nested-y", 0));
+		FreeStyleProject outer = j.createFreeStyleProject("outer");
+		outer.getPublishersList().add(new Step("nested-a", 0));
+		ProxyPublisher nested = new ProxyPublisher("inner");
+		nested.setParallelTypes("Step");
+		outer.getPublishersList().add(nested);
+
+		FreeStyleBuild build = build("outer", "Step, ProxyPublisher");
+
+		assertInOrder(JenkinsRule.getLog(build), "step nested-a", "step nested-x", "step nested-y");
+		assertTrue(inPool("nested-a") && inPool("nested-x"));
+		// no batch of its own, on the pool thread running the nested template
+		assertEquals(THREADS.get("nested-x"), THREADS.get("nested-y"));
+	}
+}
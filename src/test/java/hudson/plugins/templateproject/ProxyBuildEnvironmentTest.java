@@ -0,0 +1,163 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class ProxyBuildEnvironmentTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	/** What the wrappers did, in order. */
+	static final List<String> EVENTS = Collections.synchronizedList(new ArrayList<String>());
+
+	public static class Wrapper extends BuildWrapper {
+		private final String name;
+		private final String variables;
+		private transient Exception setUpFailure;
+		private transient Exception tearDownFailure;
+
+		/**
+		 * @param variables NAME=value pairs, separated by spaces.
+		 */
+		Wrapper(String name, String variables) {
+			this.name = name;
+			this.variables = variables;
+		}
+
+		Wrapper failingSetUp(Exception e) {
+			setUpFailure = e;
+			return this;
+		}
+
+		Wrapper failingTearDown(Exception e) {
+			tearDownFailure = e;
+			return this;
+		}
+
+		@Override
+		public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+			EVENTS.add("setUp " + name);
+			rethrow(setUpFailure);
+			return new Environment() {
+				@Override
+				public void buildEnvVars(Map<String, String> env) {
+					for (String variable : variables.split(" ")) {
+						String[] pair = variable.split("=");
+						env.put(pair[0], pair[1]);
+					}
+				}
+
+				@Override
+				public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+					EVENTS.add("tearDown " + name);
+					rethrow(tearDownFailure);
+					return true;
+				}
+			};
+		}
+
+		private static void rethrow(Exception e) throws IOException, InterruptedException {
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			} else if (e instanceof InterruptedException) {
+				throw (InterruptedException) e;
+			}
+		}
+
+		@TestExtension
+		public static class DescriptorImpl extends BuildWrapperDescriptor {
+			@Override
+			public boolean isApplicable(AbstractProject<?, ?> item) {
+				return true;
+			}
+
+			@Override
+			public String getDisplayName() {
+				return "Test wrapper";
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		EVENTS.clear();
+	}
+
+	private FreeStyleProject job(BuildWrapper... wrappers) throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getBuildWrappersList().addAll(Arrays.asList(wrappers));
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildWrappersList().add(new ProxyBuildEnvironment("template"));
+		return job;
+	}
+
+	@Test
+	public void variablesOfAllTheWrappersAreMerged() throws Exception {
+		FreeStyleProject job = job(new Wrapper("first", "A=first B=first"), new Wrapper("second", "B=second"));
+		CaptureEnvironmentBuilder capture = new CaptureEnvironmentBuilder();
+		job.getBuildersList().add(capture);
+
+		j.buildAndAssertSuccess(job);
+
+		assertEquals("first", capture.getEnvVars().get("A"));
+		// later wrappers win, as with the wrappers of the job
+		assertEquals("second", capture.getEnvVars().get("B"));
+	}
+
+	@Test
+	public void tearDownInReverseOrder() throws Exception {
+		j.buildAndAssertSuccess(job(new Wrapper("first", "A=1"), new Wrapper("second", "B=2")));
+
+		assertEquals(Arrays.asList("setUp first", "setUp second", "tearDown second", "tearDown first"), EVENTS);
+	}
+
+	@Test
+	public void failingTearDownDoesNotKeepTheOthersFromTearingDown() throws Exception {
+		FreeStyleProject job = job(new Wrapper("first", "A=1"),
+				new Wrapper("second", "B=2").failingTearDown(new IOException("second broke")));
+
+		FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+
+		assertEquals(Arrays.asList("setUp first", "setUp second", "tearDown second", "tearDown first"), EVENTS);
+		j.assertLogContains("Failed to tear down Test wrapper from: 'template'", build);
+	}
+
+	@Test
+	public void failingSetUpTearsDownTheOthersAndKeepsItsFailure() throws Exception {
+		FreeStyleProject job = job(new Wrapper("first", "A=1").failingTearDown(new InterruptedException("tear down interrupted")),
+				new Wrapper("second", "B=2").failingSetUp(new IOException("second broke")));
+
+		FreeStyleBuild build = job.scheduleBuild2(0).get();
+
+		// failed, or aborted by the interrupt passed on
+		assertTrue(build.getResult().isWorseOrEqualTo(Result.FAILURE));
+		assertEquals(Arrays.asList("setUp first", "setUp second", "tearDown first"), EVENTS);
+		j.assertLogContains("second broke", build);
+		j.assertLogContains("Interrupted while tearing down the environment from: 'template'", build);
+	}
+}
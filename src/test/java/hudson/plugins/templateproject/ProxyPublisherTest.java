@@ -0,0 +1,143 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.BuildTrigger;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+public class ProxyPublisherTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	public static class Step extends Recorder {
+		private final String name;
+		private final BuildStepMonitor monitor;
+		private final boolean succeeds;
+
+		Step(String name, BuildStepMonitor monitor, boolean succeeds) {
+			this.name = name;
+			this.monitor = monitor;
+			this.succeeds = succeeds;
+		}
+
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+			listener.getLogger().println("ran " + name);
+			return succeeds;
+		}
+
+		public BuildStepMonitor getRequiredMonitorService() {
+			return monitor;
+		}
+
+		@TestExtension
+		public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+			@Override
+			public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+				return true;
+			}
+
+			@Override
+			public String getDisplayName() {
+				return "Test step";
+			}
+		}
+	}
+
+	@Test
+	public void onlySelectedPublishersDeclareDependencies() throws Exception {
+		FreeStyleProject downstream = j.createFreeStyleProject("downstream");
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new BuildTrigger("downstream", Result.SUCCESS));
+		FreeStyleProject all = j.createFreeStyleProject("all");
+		all.getPublishersList().add(new ProxyPublisher("template"));
+		FreeStyleProject filtered = j.createFreeStyleProject("filtered");
+		ProxyPublisher proxy = new ProxyPublisher("template");
+		proxy.setIncludes("ArtifactArchiver");
+		filtered.getPublishersList().add(proxy);
+
+		j.jenkins.rebuildDependencyGraph();
+
+		assertEquals(Arrays.asList(downstream), all.getDownstreamProjects());
+		assertTrue(filtered.getDownstreamProjects().isEmpty());
+	}
+
+	/**
+	 * Runs a failing build of a job using a template with an unmonitored then a monitored publisher.
+	 */
+	private String failedBuildLog(ProxyPublisher.FailurePolicy policy) throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new Step("unmonitored", BuildStepMonitor.NONE, true));
+		template.getPublishersList().add(new Step("monitored", BuildStepMonitor.BUILD, true));
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new FailureBuilder());
+		ProxyPublisher proxy = new ProxyPublisher("template");
+		proxy.setFailurePolicy(policy);
+		job.getPublishersList().add(proxy);
+		FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+		return JenkinsRule.getLog(build);
+	}
+
+	@Test
+	public void continuePolicyRunsAllThePublishers() throws Exception {
+		String log = failedBuildLog(ProxyPublisher.FailurePolicy.CONTINUE);
+
+		assertTrue(log.contains("ran unmonitored"));
+		assertTrue(log.contains("ran monitored"));
+	}
+
+	@Test
+	public void stopPolicySkipsTheRemainingPublishers() throws Exception {
+		String log = failedBuildLog(ProxyPublisher.FailurePolicy.STOP);
+
+		assertFalse(log.contains("ran unmonitored"));
+		assertFalse(log.contains("ran monitored"));
+		assertTrue(log.contains("Build failed, skipping the remaining publishers from: 'template'"));
+	}
+
+	@Test
+	public void skipMonitoredPolicyRunsTheUnmonitoredPublishers() throws Exception {
+		String log = failedBuildLog(ProxyPublisher.FailurePolicy.SKIP_MONITORED);
+
+		assertTrue(log.contains("ran unmonitored"));
+		assertFalse(log.contains("ran monitored"));
+		assertTrue(log.contains("Build failed, skipping Test step from: 'template'"));
+	}
+
+	@Test
+	public void stopPolicyStopsAtAFailingTemplatePublisher() throws Exception {
+		FreeStyleProject template = j.createFreeStyleProject("template");
+		template.getPublishersList().add(new Step("failing", BuildStepMonitor.NONE, false));
+		template.getPublishersList().add(new Step("after", BuildStepMonitor.NONE, true));
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		ProxyPublisher proxy = new ProxyPublisher("template");
+		proxy.setFailurePolicy(ProxyPublisher.FailurePolicy.STOP);
+		job.getPublishersList().add(proxy);
+
+		FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, job.scheduleBuild2(0).get());
+
+		j.assertLogContains("ran failing", build);
+		j.assertLogNotContains("ran after", build);
+	}
+}
@@ -0,0 +1,33 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertSame;
+
+import hudson.model.FreeStyleProject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.jvnet.hudson.test.SingleFileSCM;
+
+public class ProxySCMTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void relativeNamesResolveFromTheIndexedJob() throws Exception {
+		j.createFreeStyleProject("build").setScm(new SingleFileSCM("root.txt", "root"));
+		MockFolder team = j.createFolder("team");
+		FreeStyleProject template = team.createProject(FreeStyleProject.class, "build");
+		template.setScm(new SingleFileSCM("team.txt", "team"));
+		FreeStyleProject job = team.createProject(FreeStyleProject.class, "job");
+		ProxySCM scm = new ProxySCM("build");
+		job.setScm(scm);
+		TemplateIndex.get().update(job);
+
+		// as from the UI, not given the job
+		assertSame(template.getScm(), scm.getProjectScm());
+		assertSame(template, scm.getProject());
+	}
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogParser;
+import hudson.scm.PollingResult;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Polls are shared globally, so each test uses templates of its own.
+ */
+public class SharedPollingTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	public static class State extends SCMRevisionState {
+		final String revision;
+
+		State(String revision) {
+			this.revision = revision;
+		}
+	}
+
+	public static class CountingSCM extends SCM {
+		final String url;
+		final transient AtomicInteger polls = new AtomicInteger();
+
+		CountingSCM(String url) {
+			this.url = url;
+		}
+
+		@Override
+		public SCMRevisionState calcRevisionsFromBuild(AbstractBuild<?, ?> build, Launcher launcher, TaskListener listener) {
+			return new State("1");
+		}
+
+		@Override
+		protected PollingResult compareRemoteRevisionWith(AbstractProject<?, ?> project, Launcher launcher, FilePath workspace,
+				TaskListener listener, SCMRevisionState baseline) {
+			polls.incrementAndGet();
+			return PollingResult.NO_CHANGES;
+		}
+
+		@Override
+		public ChangeLogParser createChangeLogParser() {
+			return null;
+		}
+	}
+
+	private void poll(CountingSCM scm, String template, SCMRevisionState baseline) throws Exception {
+		FreeStyleProject project = j.createFreeStyleProject();
+		SharedPolling.poll(scm, template, project, j.jenkins.createLauncher(TaskListener.NULL), null, TaskListener.NULL, baseline);
+	}
+
+	@Test
+	public void sharedBetweenEqualBaselines() throws Exception {
+		CountingSCM scm = new CountingSCM("repo");
+
+		poll(scm, "shared", new State("1"));
+		poll(scm, "shared", new State("1"));
+		assertEquals(1, scm.polls.get());
+
+		poll(scm, "shared", new State("2"));
+		assertEquals(2, scm.polls.get());
+	}
+
+	@Test
+	public void notSharedWithoutBaseline() throws Exception {
+		CountingSCM scm = new CountingSCM("repo");
+
+		poll(scm, "none", SCMRevisionState.NONE);
+		poll(scm, "none", SCMRevisionState.NONE);
+
+		assertEquals(2, scm.polls.get());
+	}
+
+	@Test
+	public void notSharedWhenTheConfigurationHoldsVariables() throws Exception {
+		CountingSCM scm = new CountingSCM("repo/${BRANCH}");
+
+		poll(scm, "variables", new State("1"));
+		poll(scm, "variables", new State("1"));
+
+		assertEquals(2, scm.polls.get());
+	}
+}
@@ -0,0 +1,138 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StepFilterTest {
+
+	public static class Step implements Describable<Step> {
+		public Descriptor<Step> getDescriptor() {
+			return new Descriptor<Step>(getClass()) {
+				@Override
+				public String getDisplayName() {
+					return getClass().getSimpleName();
+				}
+			};
+		}
+	}
+
+	public static class Alpha extends Step {
+	}
+
+	public static class Beta extends Step {
+	}
+
+	public static class Gamma extends Step {
+		@Override
+		public Descriptor<Step> getDescriptor() {
+			return new Descriptor<Step>(Gamma.class) {
+				@Override
+				public String getId() {
+					return "gamma";
+				}
+
+				@Override
+				public String getDisplayName() {
+					return "Gamma";
+				}
+			};
+		}
+	}
+
+	private static final Step A1 = new Alpha(), B2 = new Beta(), G3 = new Gamma(), A4 = new Alpha(), B5 = new Beta();
+
+	private static final List<Step> STEPS = Arrays.asList(A1, B2, G3, A4, B5);
+
+	static List<Step> steps(Step... steps) {
+		return new ArrayList<Step>(Arrays.asList(steps));
+	}
+
+	@Test
+	public void noSettingsKeepAllTheSteps() {
+		StepFilter filter = StepFilter.of(null, " ", "");
+
+		assertSame(StepFilter.ALL, filter);
+		assertTrue(filter.isAll());
+		assertSame(STEPS, filter.apply(STEPS));
+	}
+
+	@Test
+	public void includesBySimpleNameClassNameOrDescriptorId() {
+		assertEquals(steps(A1, A4), StepFilter.of("Alpha", null, null).apply(STEPS));
+		assertEquals(steps(B2, B5), StepFilter.of(Beta.class.getName(), null, null).apply(STEPS));
+		assertEquals(steps(G3), StepFilter.of("gamma", null, null).apply(STEPS));
+		assertEquals(steps(A1, G3, A4), StepFilter.of(" Alpha,gamma ", null, null).apply(STEPS));
+		assertEquals(steps(A1, B2, A4, B5), StepFilter.of("Alpha Beta", null, null).apply(STEPS));
+		assertEquals(steps(), StepFilter.of("Delta", null, null).apply(STEPS));
+	}
+
+	@Test
+	public void excludes() {
+		assertEquals(steps(G3), StepFilter.of(null, "Alpha, Beta", null).apply(STEPS));
+		assertEquals(steps(A1, A4), StepFilter.of("Alpha gamma", "gamma", null).apply(STEPS));
+	}
+
+	@Test
+	public void ranges() {
+		assertEquals(steps(B2), StepFilter.of(null, null, "2").apply(STEPS));
+		assertEquals(steps(A1, G3, A4, B5), StepFilter.of(null, null, "1, 3-").apply(STEPS));
+		assertEquals(steps(A1, B2), StepFilter.of(null, null, "-2").apply(STEPS));
+		assertEquals(steps(B2, G3, A4), StepFilter.of(null, null, " 2 - 4 ").apply(STEPS));
+		assertEquals(steps(), StepFilter.of(null, null, "6-").apply(STEPS));
+		// positions among all the steps, not the ones of the included types
+		assertEquals(steps(A4), StepFilter.of("Alpha", null, "2-").apply(STEPS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void reversedRange() {
+		StepFilter.of(null, null, "3-2");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroPosition() {
+		StepFilter.of(null, null, "0");
+	}
+
+	@Test
+	public void configuredSettingsThatCannotBeParsedKeepNoStep() {
+		assertSame(StepFilter.NONE, StepFilter.ofConfigured(null, null, "3-2"));
+		assertEquals(steps(), StepFilter.NONE.apply(STEPS));
+		assertSame(StepFilter.ALL, StepFilter.ofConfigured(null, null, null));
+	}
+
+	@Test
+	public void rangeValidation() {
+		assertEquals(FormValidation.Kind.OK, StepFilter.checkRange("").kind);
+		assertEquals(FormValidation.Kind.OK, StepFilter.checkRange("1, 3-4, 6-").kind);
+		assertEquals(FormValidation.Kind.ERROR, StepFilter.checkRange("1, x").kind);
+		assertEquals(FormValidation.Kind.ERROR, StepFilter.checkRange("1,,2").kind);
+	}
+
+	@Test
+	public void matchesIgnoresPositions() {
+		StepFilter filter = StepFilter.of("Alpha", null, "2");
+
+		assertTrue(filter.matches(A4));
+		assertFalse(filter.matches(B2));
+	}
+
+	@Test
+	public void keysTellFiltersApart() {
+		assertEquals(StepFilter.of("Alpha, Beta", null, null).getKey(), StepFilter.of("Alpha Beta", null, null).getKey());
+		assertFalse(StepFilter.of("Alpha", null, null).getKey().equals(StepFilter.ALL.getKey()));
+		assertFalse(StepFilter.of("Alpha", null, null).getKey().equals(StepFilter.of("Beta", null, null).getKey()));
+		assertFalse(StepFilter.of("Alpha", null, null).getKey().equals(StepFilter.of(null, "Alpha", null).getKey()));
+	}
+}
@@ -0,0 +1,134 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.plugins.templateproject.TemplateIndex.Reference;
+import hudson.plugins.templateproject.TemplateIndex.StepType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemplateIndexTest {
+
+	private TemplateIndex index;
+
+	@Before
+	public void setUp() {
+		index = new TemplateIndex();
+	}
+
+	private static List<Reference> refs(String template, StepType... types) {
+		Reference[] references = new Reference[types.length];
+		for (int i = 0; i < types.length; i++) {
+			references[i] = new Reference(template, types[i]);
+		}
+		return Arrays.asList(references);
+	}
+
+	private static TreeSet<String> names(String... names) {
+		return new TreeSet<String>(Arrays.asList(names));
+	}
+
+	@Test
+	public void updateReplacesThePreviousReferences() {
+		index.update("job", refs("a", StepType.BUILDER));
+		index.update("job", refs("b", StepType.PUBLISHER));
+
+		assertTrue(index.getReferrers("a").isEmpty());
+		assertEquals(names("job"), index.getReferrers("b"));
+		assertEquals(StepType.PUBLISHER, index.getReferences("job").get(0).getType());
+	}
+
+	@Test
+	public void jobsWithoutReferencesAreNotIndexed() {
+		index.update("job", Collections.<Reference>emptyList());
+
+		assertTrue(index.getJobs().isEmpty());
+	}
+
+	@Test
+	public void removeForgetsTheJobsOfAFolder() {
+		index.update("folder", refs("t", StepType.BUILDER));
+		index.update("folder/a", refs("t", StepType.BUILDER));
+		index.update("folder/sub/b", refs("t", StepType.BUILDER));
+		// sorts between "folder/" and "folder0", but is not under the folder
+		index.update("folder-other", refs("t", StepType.BUILDER));
+		index.update("folder0", refs("t", StepType.BUILDER));
+
+		index.remove("folder");
+
+		assertEquals(names("folder-other", "folder0"), index.getJobs());
+		assertEquals(names("folder-other", "folder0"), index.getReferrers("t"));
+	}
+
+	@Test
+	public void queryByFolderAndTemplate() {
+		index.update("f/a", Arrays.asList(new Reference("t", StepType.BUILDER), new Reference("u", StepType.PUBLISHER)));
+		index.update("f/b", refs("u", StepType.BUILDER));
+		index.update("g/c", refs("t", StepType.BUILDER));
+
+		assertEquals(names("f/a", "f/b"), index.query(null, "f/").keySet());
+		assertEquals(names("f/a", "g/c"), index.query("t", null).keySet());
+		assertEquals(names("f/a"), index.query("t", "f").keySet());
+		// only the references to the queried template
+		assertEquals(1, index.query("t", "f").get("f/a").size());
+		assertTrue(index.query("missing", null).isEmpty());
+	}
+
+	@Test
+	public void jobsWithProjectActionsSkipSCMOnlyReferences() {
+		index.update("scm", refs("t", StepType.SCM));
+		index.update("both", refs("t", StepType.SCM, StepType.PUBLISHER));
+
+		assertEquals(Arrays.asList("both"), index.getJobsWithProjectActions());
+	}
+
+	@Test
+	public void updateTellsWhetherTheReferencesChanged() {
+		assertTrue(index.update("job", Arrays.asList(new Reference("t", "f/t", StepType.BUILDER))));
+		assertFalse(index.update("job", Arrays.asList(new Reference("t", "f/t", StepType.BUILDER))));
+		// the same configured name, resolving to another template
+		assertTrue(index.update("job", Arrays.asList(new Reference("t", "t", StepType.BUILDER))));
+		assertTrue(index.update("job", Collections.<Reference>emptyList()));
+		assertFalse(index.update("job", Collections.<Reference>emptyList()));
+	}
+
+	@Test
+	public void referencesAreIndexedUnderTheResolvedName() {
+		index.update("f/job", Arrays.asList(new Reference("../t", "t", StepType.BUILDER)));
+
+		assertEquals(names("f/job"), index.getReferrers("t"));
+		assertTrue(index.getReferrers("../t").isEmpty());
+		assertEquals("../t", index.getReferences("f/job").get(0).getConfiguredName());
+	}
+
+	@Test
+	public void affectedJobs() {
+		index.update("f/a", Arrays.asList(new Reference("t", "t", StepType.BUILDER)));
+		index.update("f/b", Arrays.asList(new Reference("templates/build", "templates/build", StepType.BUILDER)));
+		index.update("f/c", Arrays.asList(new Reference("../other/x", null, StepType.PUBLISHER)));
+		index.update("f/d", Arrays.asList(new Reference("${T}", null, StepType.BUILDER)));
+
+		// a nearer template of the same name
+		assertEquals(names("f/a"), index.getAffectedBy("f/t"));
+		// the folder of the resolved templates
+		assertEquals(names("f/b"), index.getAffectedBy("templates"));
+		assertEquals(names("f/b"), index.getAffectedBy("g/templates"));
+		// a folder of an unresolved name
+		assertEquals(names("f/c"), index.getAffectedBy("other"));
+		assertTrue(index.getAffectedBy("unrelated").isEmpty());
+	}
+
+	@Test
+	public void parameterizedReferences() {
+		assertTrue(new Reference("${TEMPLATE}", StepType.BUILDER).isParameterized());
+		assertTrue(!new Reference("t", StepType.BUILDER).isParameterized());
+	}
+}
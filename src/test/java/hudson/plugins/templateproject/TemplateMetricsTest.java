@@ -0,0 +1,111 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.plugins.templateproject.TemplateTimingAction.Phase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * The metrics are global, so each test uses templates of its own.
+ */
+public class TemplateMetricsTest {
+
+	private static List<String> lines() {
+		StringWriter out = new StringWriter();
+		PrintWriter w = new PrintWriter(out);
+		TemplateMetrics.write(w);
+		w.flush();
+		List<String> lines = new ArrayList<String>();
+		for (String line : out.toString().split("\r?\n")) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	private static List<String> linesWith(String part) {
+		List<String> matching = new ArrayList<String>();
+		for (String line : lines()) {
+			if (line.contains(part)) {
+				matching.add(line);
+			}
+		}
+		return matching;
+	}
+
+	private static long value(String series) {
+		for (String line : lines()) {
+			if (line.startsWith(series + " ")) {
+				return Long.parseLong(line.substring(series.length() + 1));
+			}
+		}
+		throw new AssertionError("No " + series);
+	}
+
+	@Test
+	public void resolutionCounters() {
+		long hits = value("templateproject_resolutions_total{result=\"hit\"}");
+		long notFound = value("templateproject_resolutions_total{result=\"not_found\"}");
+
+		TemplateMetrics.resolution(TemplateMetrics.Resolution.HIT);
+		TemplateMetrics.resolution(TemplateMetrics.Resolution.HIT);
+		TemplateMetrics.resolution(TemplateMetrics.Resolution.NOT_FOUND);
+
+		assertEquals(hits + 2, value("templateproject_resolutions_total{result=\"hit\"}"));
+		assertEquals(notFound + 1, value("templateproject_resolutions_total{result=\"not_found\"}"));
+	}
+
+	@Test
+	public void stepHistogram() {
+		TemplateMetrics.step("histogram", Phase.BUILDER, "hudson.tasks.Shell", 7);
+		TemplateMetrics.step("histogram", Phase.BUILDER, "hudson.tasks.Shell", 2000);
+		TemplateMetrics.step("histogram", Phase.BUILDER, "hudson.tasks.Shell", 1000000);
+
+		String labels = "template=\"histogram\",phase=\"builder\",step=\"hudson.tasks.Shell\"";
+		List<String> lines = linesWith(labels);
+		// cumulative buckets
+		assertTrue(lines.contains("templateproject_step_duration_seconds_bucket{" + labels + ",le=\"0.005\"} 0"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_bucket{" + labels + ",le=\"0.01\"} 1"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_bucket{" + labels + ",le=\"2.5\"} 2"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_bucket{" + labels + ",le=\"900.0\"} 2"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 3"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_sum{" + labels + "} 1002.007"));
+		assertTrue(lines.contains("templateproject_step_duration_seconds_count{" + labels + "} 3"));
+		assertEquals(18, lines.size());
+	}
+
+	@Test
+	public void phasesWithoutStep() {
+		TemplateMetrics.step("resolution", Phase.RESOLUTION, null, 1);
+
+		assertTrue(lines().contains(
+				"templateproject_step_duration_seconds_count{template=\"resolution\",phase=\"resolution\",step=\"\"} 1"));
+	}
+
+	@Test
+	public void labelsAreEscaped() {
+		TemplateMetrics.step("a \"quoted\\\" name", Phase.PUBLISHER, "id", 1);
+
+		assertEquals(1, linesWith("_count{template=\"a \\\"quoted\\\\\\\" name\",phase=\"publisher\",step=\"id\"} 1").size());
+	}
+
+	@Test
+	public void namesDoNotDependOnTheLocale() {
+		TemplateMetrics.step("locale", Phase.RESOLUTION, "id", 1);
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			assertEquals(1, linesWith("_count{template=\"locale\",phase=\"resolution\",step=\"id\"} 1").size());
+			assertEquals(1, linesWith("templateproject_resolutions_total{result=\"hit\"}").size());
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+}
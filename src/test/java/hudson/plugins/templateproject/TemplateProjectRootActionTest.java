@@ -0,0 +1,106 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.plugins.templateproject.TemplateProjectRootAction.Report;
+import hudson.plugins.templateproject.TemplateProjectRootAction.Usage;
+import hudson.security.ACL;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+
+public class TemplateProjectRootActionTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Before
+	public void setUp() throws Exception {
+		j.createFolder("templates").createProject(FreeStyleProject.class, "build");
+		j.createFreeStyleProject("other");
+		MockFolder team = j.createFolder("team");
+		job(team.createProject(FreeStyleProject.class, "a"), "../templates/build");
+		job(team.createProject(FreeStyleProject.class, "b"), "other");
+		job(j.createFreeStyleProject("c"), "templates/build");
+	}
+
+	private static void job(FreeStyleProject job, String template) throws Exception {
+		job.getBuildersList().add(new ProxyBuilder(template));
+		TemplateIndex.get().update(job);
+	}
+
+	private static List<String> jobs(Report report) {
+		List<String> jobs = new ArrayList<String>();
+		for (Usage usage : report.getUsages()) {
+			jobs.add(usage.getJob());
+		}
+		return jobs;
+	}
+
+	@Test
+	public void templateFilterTakesTheResolvedFullName() {
+		Report report = new Report("templates/build", null, 0, 10);
+
+		assertEquals(Arrays.asList("c", "team/a"), jobs(report));
+		// the configured name is kept as is
+		assertEquals("../templates/build", report.getUsages().get(1).getTemplate());
+		assertEquals("templates/build", report.getUsages().get(1).getTemplateFullName());
+		assertEquals(0, new Report("../templates/build", null, 0, 10).getTotal());
+	}
+
+	@Test
+	public void folderFilter() {
+		assertEquals(Arrays.asList("team/a", "team/b"), jobs(new Report(null, "team", 0, 10)));
+		assertEquals(Collections.singletonList("team/a"), jobs(new Report("templates/build", "team", 0, 10)));
+	}
+
+	@Test
+	public void paging() {
+		Report report = new Report(null, null, 1, 1);
+
+		assertEquals(Collections.singletonList("team/a"), jobs(report));
+		assertEquals(3, report.getTotal());
+		assertEquals(0, new Report(null, null, 3, 10).getUsages().size());
+	}
+
+	@Test
+	public void jobsTheUserCannotSeeAreSkipped() throws Exception {
+		j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+		ProjectMatrixAuthorizationStrategy strategy = new ProjectMatrixAuthorizationStrategy();
+		strategy.add(Hudson.READ, "alice");
+		j.jenkins.setAuthorizationStrategy(strategy);
+		Map<Permission, Set<String>> read = new HashMap<Permission, Set<String>>();
+		read.put(Item.READ, Collections.singleton("alice"));
+		j.jenkins.getItemByFullName("c", FreeStyleProject.class).addProperty(new AuthorizationMatrixProperty(read));
+
+		SecurityContext oldContext = ACL.impersonate(User.get("alice").impersonate());
+		try {
+			Report report = new Report(null, null, 0, 10);
+
+			assertEquals(Collections.singletonList("c"), jobs(report));
+			assertEquals(1, report.getTotal());
+		} finally {
+			SecurityContextHolder.setContext(oldContext);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class TemplateQueueTaskDispatcherTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private FreeStyleProject job(String template) throws Exception {
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new ProxyBuilder(template));
+		TemplateIndex.get().update(job);
+		return job;
+	}
+
+	private Queue.Item waitUntilBlocked(FreeStyleProject job) throws Exception {
+		Queue.Item item;
+		while ((item = j.jenkins.getQueue().getItem(job)) == null || !item.isBlocked()) {
+			j.jenkins.getQueue().maintain();
+			Thread.sleep(100);
+		}
+		return item;
+	}
+
+	@Test
+	public void blockedUntilTheTemplateExists() throws Exception {
+		FreeStyleProject job = job("template");
+		QueueTaskFuture<FreeStyleBuild> build = job.scheduleBuild2(0);
+
+		Queue.Item item = waitUntilBlocked(job);
+		assertTrue(item.getCauseOfBlockage() instanceof TemplateQueueTaskDispatcher.MissingTemplate);
+		assertEquals("template", ((TemplateQueueTaskDispatcher.MissingTemplate) item.getCauseOfBlockage()).getName());
+
+		j.createFreeStyleProject("template");
+		j.jenkins.getQueue().maintain();
+
+		j.assertBuildStatusSuccess(build.get(60, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void globalVariablesChangingUnblock() throws Exception {
+		j.createFreeStyleProject("template");
+		j.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(
+				new EnvironmentVariablesNodeProperty.Entry("TEMPLATE", "missing")));
+		FreeStyleProject job = job("${TEMPLATE}");
+		QueueTaskFuture<FreeStyleBuild> build = job.scheduleBuild2(0);
+
+		Queue.Item item = waitUntilBlocked(job);
+		assertEquals("missing", ((TemplateQueueTaskDispatcher.MissingTemplate) item.getCauseOfBlockage()).getName());
+
+		j.jenkins.getGlobalNodeProperties().replace(new EnvironmentVariablesNodeProperty(
+				new EnvironmentVariablesNodeProperty.Entry("TEMPLATE", "template")));
+		j.jenkins.getQueue().maintain();
+
+		j.assertBuildStatusSuccess(build.get(60, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,111 @@
+package hudson.plugins.templateproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+
+public class TemplateResolverTest {
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void fullNames() throws Exception {
+		MockFolder templates = j.createFolder("templates");
+		templates.createProject(FreeStyleProject.class, "build");
+		FreeStyleProject job = j.createFolder("team").createProject(FreeStyleProject.class, "job");
+
+		assertEquals("templates/build", TemplateResolver.resolveName("templates/build", job));
+		assertEquals("templates/build", TemplateResolver.resolveName("templates/build", null));
+		assertNull(TemplateResolver.resolveName("build", null));
+	}
+
+	@Test
+	public void relativeNames() throws Exception {
+		j.createFreeStyleProject("build");
+		MockFolder team = j.createFolder("team");
+		team.createProject(FreeStyleProject.class, "build");
+		FreeStyleProject job = team.createProject(FreeStyleProject.class, "job");
+
+		assertEquals("team/build", TemplateResolver.resolveName("./build", job));
+		assertEquals("build", TemplateResolver.resolveName("../build", job));
+		assertNull(TemplateResolver.resolveName("../missing", job));
+	}
+
+	@Test
+	public void nearestAncestorWins() throws Exception {
+		MockFolder team = j.createFolder("team");
+		team.createProject(FreeStyleProject.class, "build");
+		MockFolder sub = team.createProject(MockFolder.class, "sub");
+		FreeStyleProject job = sub.createProject(FreeStyleProject.class, "job");
+		FreeStyleProject other = j.createFreeStyleProject("other");
+
+		assertEquals("team/build", TemplateResolver.resolveName("build", job));
+		// the same name from another folder
+		assertNull(TemplateResolver.resolveName("build", other));
+
+		sub.createProject(FreeStyleProject.class, "build");
+
+		assertEquals("team/sub/build", TemplateResolver.resolveName("build", job));
+	}
+
+	@Test
+	public void foldersOverrideFullNames() throws Exception {
+		j.createFolder("templates").createProject(FreeStyleProject.class, "build");
+		MockFolder team = j.createFolder("team");
+		FreeStyleProject job = team.createProject(FreeStyleProject.class, "job");
+
+		assertEquals("templates/build", TemplateResolver.resolveName("templates/build", job));
+
+		team.createProject(MockFolder.class, "templates").createProject(FreeStyleProject.class, "build");
+
+		assertEquals("team/templates/build", TemplateResolver.resolveName("templates/build", job));
+		assertEquals("templates/build", TemplateResolver.resolveName("templates/build", null));
+	}
+
+	@Test
+	public void referrersFollowTheNearestTemplate() throws Exception {
+		j.createFreeStyleProject("build");
+		MockFolder team = j.createFolder("team");
+		FreeStyleProject job = team.createProject(FreeStyleProject.class, "job");
+		job.getBuildersList().add(new ProxyBuilder("build"));
+		TemplateIndex.get().update(job);
+		assertEquals(Collections.singleton("team/job"), TemplateIndex.get().getReferrers("build"));
+
+		FreeStyleProject nearer = team.createProject(FreeStyleProject.class, "build");
+
+		assertTrue(TemplateIndex.get().getReferrers("build").isEmpty());
+		assertEquals(Collections.singleton("team/job"), TemplateIndex.get().getReferrers("team/build"));
+		assertEquals("build", TemplateIndex.get().getReferences("team/job").get(0).getConfiguredName());
+
+		nearer.delete();
+
+		assertTrue(TemplateIndex.get().getReferrers("team/build").isEmpty());
+		assertEquals(Collections.singleton("team/job"), TemplateIndex.get().getReferrers("build"));
+	}
+
+	@Test
+	public void referrersFollowAMovedFolder() throws Exception {
+		MockFolder templates = j.createFolder("templates");
+		templates.createProject(FreeStyleProject.class, "build");
+		FreeStyleProject job = j.createFreeStyleProject("job");
+		job.getBuildersList().add(new ProxyBuilder("templates/build"));
+		TemplateIndex.get().update(job);
+
+		templates.renameTo("renamed");
+
+		// the configured name no longer resolves
+		assertTrue(TemplateIndex.get().getReferrers("renamed/build").isEmpty());
+		assertEquals(Collections.singleton("job"), TemplateIndex.get().getReferrers("templates/build"));
+		assertNull(TemplateIndex.get().getReferences("job").get(0).getFullName());
+	}
+}